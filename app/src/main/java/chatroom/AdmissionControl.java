@@ -0,0 +1,144 @@
+package chatroom;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+// Decides whether the accept loop takes another connection. Every 100 ms on the timer
+// wheel it samples the frames queued for all connections, the heap still in use after the last
+// collection and the connection count, which is also checked live on every accept. Over
+// any limit the accept loop holds the connection it just took and stops accepting, so a
+// surge waits in the listen backlog; once the overload has lasted deferMillis, new
+// connections are told ServerBusy and closed. A limit of 0 is off.
+//   -Dchat.admission.maxQueuedFrames=1000000 -Dchat.admission.maxHeapPercent=85
+//   -Dchat.admission.maxConnections=0 -Dchat.admission.deferMillis=2000
+final class AdmissionControl {
+    // Sent on the text protocol every connection starts with
+    static final ByteBuffer SERVER_BUSY = TextProtocol.encodeLine("ServerBusy");
+
+    private static final long SAMPLE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static final Metrics.Counter admitted = Metrics.counter("chat_admission_total",
+            "Admission decisions on new connections, deferred ones end admitted or rejected", "result=\"admitted\"");
+    private static final Metrics.Counter deferred = Metrics.counter("chat_admission_total",
+            "Admission decisions on new connections, deferred ones end admitted or rejected", "result=\"deferred\"");
+    private static final Metrics.Counter rejected = Metrics.counter("chat_admission_total",
+            "Admission decisions on new connections, deferred ones end admitted or rejected", "result=\"rejected\"");
+
+    private final long maxQueuedFrames;
+    private final int maxHeapPercent;
+    private final int maxConnections;
+    private final long deferNanos;
+    private final IntSupplier connections;
+    // Heap pools whose usage right after a collection is reported, i.e. without garbage
+    private final List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+
+    // Guarded by this, why connections are held off, null while admitting
+    private String overload;
+    private long overloadedSinceNanos;
+    private volatile int heapPercent;
+
+    AdmissionControl(long maxQueuedFrames, int maxHeapPercent, int maxConnections, long deferMillis,
+            IntSupplier connections) {
+        this.maxQueuedFrames = maxQueuedFrames;
+        this.maxHeapPercent = maxHeapPercent;
+        this.maxConnections = maxConnections;
+        this.deferNanos = TimeUnit.MILLISECONDS.toNanos(deferMillis);
+        this.connections = connections;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isCollectionUsageThresholdSupported()) {
+                heapPools.add(pool);
+            }
+        }
+        Metrics.gauge("chat_outbound_queued_frames", "Frames queued for all connections", OutboundQueue.queued::sum);
+        Metrics.gauge("chat_heap_after_gc_percent", "Heap in use after the last collection, percent of the max heap",
+                () -> heapPercent);
+    }
+
+    static AdmissionControl fromProperties(IntSupplier connections) {
+        return new AdmissionControl(Long.getLong("chat.admission.maxQueuedFrames", 1_000_000),
+                Integer.getInteger("chat.admission.maxHeapPercent", 85),
+                Integer.getInteger("chat.admission.maxConnections", 0),
+                Long.getLong("chat.admission.deferMillis", 2000), connections);
+    }
+
+    // Samples on the wheel from now on
+    void start(TimerWheel timers) {
+        timers.schedule(() -> {
+            sample();
+            start(timers);
+        }, SAMPLE_NANOS);
+    }
+
+    // Called by the accept loop for each accepted connection. Waits while overloaded, but
+    // no longer than deferMillis into the overload; false means reject the connection.
+    synchronized boolean admit() throws InterruptedException {
+        if (maxConnections > 0 && overload == null) {
+            // Connections accepted since the last sample count too
+            int count = connections.getAsInt();
+            if (count >= maxConnections) {
+                overloaded(count + " connections");
+            }
+        }
+        if (overload == null) {
+            admitted.increment();
+            return true;
+        }
+        deferred.increment();
+        long wait;
+        while (overload != null && (wait = overloadedSinceNanos + deferNanos - System.nanoTime()) > 0) {
+            TimeUnit.NANOSECONDS.timedWait(this, wait);
+        }
+        if (overload != null) {
+            rejected.increment();
+            return false;
+        }
+        admitted.increment();
+        return true;
+    }
+
+    private void sample() {
+        heapPercent = heapPercent();
+        String reason = null;
+        long queued = OutboundQueue.queued.sum();
+        int count = connections.getAsInt();
+        if (maxQueuedFrames > 0 && queued > maxQueuedFrames) {
+            reason = queued + " frames queued";
+        } else if (maxHeapPercent > 0 && heapPercent > maxHeapPercent) {
+            reason = "heap " + heapPercent + "% full after collection";
+        } else if (maxConnections > 0 && count >= maxConnections) {
+            reason = count + " connections";
+        }
+        synchronized (this) {
+            if (reason != null && overload == null) {
+                overloaded(reason);
+            } else if (reason == null && overload != null) {
+                ChatLog.info("Accepting connections again");
+                overload = null;
+                notifyAll();
+            }
+        }
+    }
+
+    // Guarded by this
+    private void overloaded(String reason) {
+        overload = reason;
+        overloadedSinceNanos = System.nanoTime();
+        ChatLog.warn("Holding off new connections, " + reason);
+    }
+
+    // Summed over the pools, a survivor space on its own is often full right after a collection
+    private int heapPercent() {
+        long used = 0;
+        for (MemoryPoolMXBean pool : heapPools) {
+            MemoryUsage usage = pool.getCollectionUsage();
+            used += usage.getUsed();
+        }
+        return (int) (100 * used / Runtime.getRuntime().maxMemory());
+    }
+}
@@ -0,0 +1,357 @@
+package chatroom;
+
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+// Length-prefixed binary framing: varint frame length, one opcode byte, then the fields.
+// Ids and versions are unsigned varints, strings are a varint byte count plus UTF-8,
+// so names may contain spaces. A group is the raw address bytes, length-prefixed
+// like a string, followed by a varint port. Requests are parsed in place from the receive buffer.
+class BinaryProtocol implements WireProtocol {
+    // Client to server
+    static final byte GET_ROOMS = 0x01;        // varlong sinceVersion + 1, 0 asks for the full list
+    static final byte CREATE_ROOM = 0x02;      // string roomName
+    static final byte JOIN_ROOM = 0x03;        // varint roomId, string userName
+    static final byte LEAVE_ROOM = 0x04;       // varint roomId, string userName
+    static final byte SEND_MESSAGE = 0x05;     // varint roomId, string text
+    static final byte GET_HISTORY = 0x06;      // varint roomId, varlong beforeSeq, 0 for the newest, varint limit
+    static final byte PING = 0x07;
+    static final byte PONG = 0x08;
+    static final byte REQUEST = 0x09;          // varlong requestId, then a request without its length
+
+    // Server to client
+    static final byte ROOM = 0x41;             // varint roomId, string roomName, string creator, group
+    static final byte END_OF_ROOM_LIST = 0x42; // varlong version
+    static final byte ROOM_CREATED = 0x43;     // varint roomId, string roomName, string creator, group
+    static final byte NEW_ROOM = 0x44;         // varint roomId, string roomName, string creator, group
+    static final byte MESSAGE = 0x45;          // varint roomId, string sender, string text
+    static final byte ROOM_DELETED = 0x46;     // varint roomId
+    static final byte ROOM_LIST_RESET = 0x47;
+    static final byte ROOM_LIST_CHANGED = 0x48;
+    static final byte HISTORY = 0x49;          // varint roomId, varlong seq, varlong millis, string sender, string text
+    static final byte END_OF_HISTORY = 0x4A;   // varint roomId, varlong nextBeforeSeq
+    static final byte SERVER_PING = 0x4B;
+    static final byte SERVER_PONG = 0x4C;
+    static final byte RATE_LIMITED = 0x4D;     // string command, named as in the text protocol
+    static final byte REPLY = 0x4E;            // varlong requestId, then the reply's last frame without its length
+    static final byte NODE_UNAVAILABLE = 0x4F; // string command, named as in the text protocol
+    static final byte UNKNOWN_COMMAND = 0x7F;
+
+    private static final ByteBuffer ROOM_LIST_RESET_FRAME = encode(ROOM_LIST_RESET);
+    private static final ByteBuffer ROOM_LIST_CHANGED_FRAME = encode(ROOM_LIST_CHANGED);
+    private static final ByteBuffer UNKNOWN_COMMAND_FRAME = encode(UNKNOWN_COMMAND);
+    private static final ByteBuffer PING_FRAME = encode(SERVER_PING);
+    private static final ByteBuffer PONG_FRAME = encode(SERVER_PONG);
+
+    public int index() {
+        return 1;
+    }
+
+    public String name() {
+        return "binary";
+    }
+
+    public boolean decode(ByteBuffer in, MultiCastServer.ClientHandler handler) throws ProtocolException {
+        int start = in.position();
+        int length = 0;
+        int shift = 0;
+        byte b;
+        do {
+            if (!in.hasRemaining()) {
+                in.position(start);
+                return false;
+            }
+            if (shift > 28) {
+                throw new ProtocolException("Malformed frame length");
+            }
+            b = in.get();
+            length |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        if (length <= 0 || length > MAX_FRAME_LENGTH) {
+            throw new ProtocolException("Bad frame length " + length);
+        }
+        if (in.remaining() < length) {
+            in.position(start);
+            return false;
+        }
+
+        int end = in.position() + length;
+        int limit = in.limit();
+        in.limit(end);
+        try {
+            dispatch(in, handler, false);
+        } catch (BufferUnderflowException e) {
+            // The field readers check everything else, so the handler's own failures
+            // are not mistaken for the client's
+            throw new ProtocolException("Truncated frame");
+        } finally {
+            in.limit(limit);
+            in.position(end);
+        }
+        return true;
+    }
+
+    // inRequest is set inside a REQUEST frame, which holds exactly one plain request
+    private void dispatch(ByteBuffer in, MultiCastServer.ClientHandler handler, boolean inRequest) throws ProtocolException {
+        switch (in.get()) {
+            case GET_ROOMS:
+                handler.getRooms(readVarLong(in) - 1);
+                break;
+            case CREATE_ROOM:
+                handler.createRoom(readString(in));
+                break;
+            case JOIN_ROOM:
+                handler.joinRoom(readVarInt(in), null, readString(in));
+                break;
+            case LEAVE_ROOM:
+                handler.leaveRoom(readVarInt(in), readString(in));
+                break;
+            case SEND_MESSAGE:
+                handler.sendMessage(readVarInt(in), readString(in));
+                break;
+            case GET_HISTORY:
+                handler.getHistory(readVarInt(in), readVarLong(in), readVarInt(in));
+                break;
+            case PING:
+                handler.ping();
+                break;
+            case PONG:
+                handler.pong();
+                break;
+            case REQUEST:
+                if (inRequest) {
+                    throw new ProtocolException("Nested request");
+                }
+                handler.requestId = readVarLong(in);
+                try {
+                    dispatch(in, handler, true);
+                } finally {
+                    handler.requestId = 0;
+                }
+                break;
+            default:
+                handler.unknownCommand();
+        }
+    }
+
+    public ByteBuffer roomCreated(int roomId, String roomName, String creator, InetSocketAddress group) {
+        return encodeRoom(ROOM_CREATED, roomId, roomName, creator, group);
+    }
+
+    public ByteBuffer newRoom(int roomId, String roomName, String creator, InetSocketAddress group) {
+        return encodeRoom(NEW_ROOM, roomId, roomName, creator, group);
+    }
+
+    public ByteBuffer message(int roomId, String sender, String text) {
+        return encode(MESSAGE, roomId, sender, text);
+    }
+
+    // One HISTORY frame per message and the END_OF_HISTORY frame, in a single buffer
+    public ByteBuffer history(int roomId, List<EventLog.MessageRecord> page, long nextBeforeSeq) {
+        ByteBuffer[] frames = new ByteBuffer[page.size() + 1];
+        int length = 0;
+        for (int i = 0; i < page.size(); i++) {
+            EventLog.MessageRecord message = page.get(i);
+            frames[i] = encode(HISTORY, roomId, message.lsn, message.millis, message.sender, message.text);
+            length += frames[i].remaining();
+        }
+        frames[page.size()] = encode(END_OF_HISTORY, roomId, nextBeforeSeq);
+        length += frames[page.size()].remaining();
+        ByteBuffer out = ByteBuffer.allocate(length);
+        for (ByteBuffer frame : frames) {
+            out.put(frame);
+        }
+        out.flip();
+        return out.asReadOnlyBuffer();
+    }
+
+    public ByteBuffer roomListChanged() {
+        return ROOM_LIST_CHANGED_FRAME;
+    }
+
+    public ByteBuffer roomListReset() {
+        return ROOM_LIST_RESET_FRAME;
+    }
+
+    // Binary clients always get the version
+    public ByteBuffer endOfRoomList(long version, boolean versioned) {
+        return encode(END_OF_ROOM_LIST, version);
+    }
+
+    public ByteBuffer unknownCommand() {
+        return UNKNOWN_COMMAND_FRAME;
+    }
+
+    public ByteBuffer rateLimited(String command) {
+        return encode(RATE_LIMITED, command);
+    }
+
+    public ByteBuffer nodeUnavailable(String command) {
+        return encode(NODE_UNAVAILABLE, command);
+    }
+
+    // Re-frames the last frame of the reply inside a REPLY frame
+    public ByteBuffer tagged(long requestId, ByteBuffer reply) {
+        if (requestId == 0) {
+            return reply;
+        }
+        ByteBuffer frames = reply.duplicate();
+        int lastFrame = frames.position();
+        int body = lastFrame;
+        while (frames.hasRemaining()) {
+            lastFrame = frames.position();
+            long length = readFrameLength(frames);
+            body = frames.position();
+            frames.position(body + (int) length);
+        }
+        ByteBuffer head = reply.duplicate();
+        head.limit(lastFrame);
+        ByteBuffer last = reply.duplicate();
+        last.position(body);
+        int length = 1 + varLongSize(requestId) + last.remaining();
+        ByteBuffer out = ByteBuffer.allocate(head.remaining() + varLongSize(length) + length);
+        out.put(head);
+        writeVarLong(out, length);
+        out.put(REPLY);
+        writeVarLong(out, requestId);
+        out.put(last).flip();
+        return out.asReadOnlyBuffer();
+    }
+
+    public ByteBuffer ping() {
+        return PING_FRAME;
+    }
+
+    public ByteBuffer pong() {
+        return PONG_FRAME;
+    }
+
+    public byte[] roomEntry(int roomId, String roomName, String creator, InetSocketAddress group) {
+        return toBytes(encodeRoom(ROOM, roomId, roomName, creator, group));
+    }
+
+    public byte[] roomDeleted(int roomId) {
+        return toBytes(encode(ROOM_DELETED, roomId));
+    }
+
+    // A room without a group sends an empty address and port 0
+    private static ByteBuffer encodeRoom(byte opcode, int roomId, String roomName, String creator, InetSocketAddress group) {
+        byte[] address = group != null ? group.getAddress().getAddress() : new byte[0];
+        int port = group != null ? group.getPort() : 0;
+        return encode(opcode, roomId, roomName, creator, address, port);
+    }
+
+    // Builds one frame from its fields: numbers become varints, strings
+    // length-prefixed UTF-8 and byte arrays length-prefixed raw bytes
+    static ByteBuffer encode(byte opcode, Object... fields) {
+        byte[][] encoded = new byte[fields.length][];
+        int length = 1;
+        for (int i = 0; i < fields.length; i++) {
+            Object field = fields[i];
+            if (field instanceof Number) {
+                length += varLongSize(((Number) field).longValue());
+                continue;
+            }
+            encoded[i] = field instanceof byte[] ? (byte[]) field : ((String) field).getBytes(StandardCharsets.UTF_8);
+            length += varLongSize(encoded[i].length) + encoded[i].length;
+        }
+        ByteBuffer frame = ByteBuffer.allocate(varLongSize(length) + length);
+        writeVarLong(frame, length);
+        frame.put(opcode);
+        for (int i = 0; i < fields.length; i++) {
+            if (encoded[i] == null) {
+                writeVarLong(frame, ((Number) fields[i]).longValue());
+            } else {
+                writeVarLong(frame, encoded[i].length);
+                frame.put(encoded[i]);
+            }
+        }
+        frame.flip();
+        return frame.asReadOnlyBuffer();
+    }
+
+    // Frames we encoded ourselves, so the length is well formed
+    private static long readFrameLength(ByteBuffer in) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    static int readVarInt(ByteBuffer in) throws ProtocolException {
+        long value = readVarLong(in);
+        // A ten byte varint can come out negative
+        if (value < 0 || value > Integer.MAX_VALUE) {
+            throw new ProtocolException("Varint out of range");
+        }
+        return (int) value;
+    }
+
+    static long readVarLong(ByteBuffer in) throws ProtocolException {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            if (shift > 63) {
+                throw new ProtocolException("Malformed varint");
+            }
+            b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    // Decodes straight from the receive buffer's backing array
+    static String readString(ByteBuffer in) throws ProtocolException {
+        int length = readVarInt(in);
+        if (length < 0 || length > in.remaining()) {
+            throw new ProtocolException("Truncated string");
+        }
+        String value;
+        if (in.hasArray()) {
+            value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        } else {
+            byte[] bytes = new byte[length];
+            in.duplicate().get(bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+        }
+        in.position(in.position() + length);
+        if (WireProtocol.hasControlCharacter(value)) {
+            throw new ProtocolException("Control character in string");
+        }
+        return value;
+    }
+
+    static void writeVarLong(ByteBuffer out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    static int varLongSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private static byte[] toBytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,330 @@
+package chatroom;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Client side of the text protocol without any UI. Requests with an answer return a
+// future and go out tagged with a request id, so any number can be in flight on the
+// connection and each reply finds its request whatever order they come back in.
+// Everything else the server sends becomes Listener calls on a reader thread of its
+// own. Used by the Swing client and by LoadGenerator, which runs thousands of these
+// in one JVM.
+class ChatConnection {
+    // Called on the reader thread, in the order the server sent the lines
+    interface Listener {
+        // Part of a room list answering GetRooms, as the rows stream in
+        default void roomListed(Room room) {
+        }
+
+        // Someone else created a room
+        default void newRoom(Room room) {
+        }
+
+        default void roomDeleted(int roomId) {
+        }
+
+        // Our version is too old for a delta, the full list follows
+        default void roomListReset() {
+        }
+
+        // Chat line relayed by the server, text is "<sender>: <message>"
+        default void message(int roomId, String text) {
+        }
+
+        // The server refused a command without a future, such as SendMessage, for going
+        // over a rate limit
+        default void rateLimited(String command) {
+        }
+
+        // The server closed the connection, error is null on a clean end of stream
+        default void disconnected(IOException error) {
+        }
+    }
+
+    private final Socket socket;
+    private final BufferedReader in;
+    private final PrintWriter out;
+    private final Listener listener;
+    // Last room list version seen, GetRooms <version> only returns what changed since
+    private volatile long roomListVersion = 0;
+    // History lines of the page being read, only touched by the reader thread. A page
+    // arrives in one piece, so its lines always directly precede its end line.
+    private List<String> historyLines = new ArrayList<>();
+
+    private final AtomicLong nextRequest = new AtomicLong(1);
+    // Requests waiting for their reply, by id
+    private final Map<Long, CompletableFuture<?>> pending = new ConcurrentHashMap<>();
+    // Why the connection ended, set once by the reader thread
+    private volatile IOException closed;
+
+    ChatConnection(String host, int port, Listener listener) throws IOException {
+        this.socket = new Socket(host, port);
+        // Commands are single short lines, often two back to back (JoinRoom, GetRooms)
+        socket.setTcpNoDelay(true);
+        this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        this.out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+        this.listener = listener;
+    }
+
+    // Reads until the connection closes; the thread does not keep the JVM alive
+    Thread start(String threadName) {
+        Thread reader = new Thread(this::read, threadName);
+        reader.setDaemon(true);
+        reader.start();
+        return reader;
+    }
+
+    InetAddress localAddress() {
+        return socket.getLocalAddress();
+    }
+
+    long roomListVersion() {
+        return roomListVersion;
+    }
+
+    // Rooms seen before are kept by the caller, this only asks for what changed since.
+    // The rows go to roomListed, the future then completes with the new version.
+    CompletableFuture<Long> getRooms() {
+        return request("GetRooms " + roomListVersion);
+    }
+
+    CompletableFuture<Room> createRoom(String roomName) {
+        return request("CreateRoom " + roomName);
+    }
+
+    void joinRoom(Room room, String userName) {
+        out.println("JoinRoom " + room.getId() + " " + room.getName() + " " + userName);
+    }
+
+    void leaveRoom(Room room, String userName) {
+        out.println("LeaveRoom " + room.getId() + " " + userName);
+    }
+
+    // The server prefixes the sender and relays it to every member, including us
+    void sendMessage(Room room, String message) {
+        out.println("SendMessage " + room.getId() + " " + message);
+    }
+
+    // beforeSeq 0 asks for the newest messages
+    CompletableFuture<HistoryPage> getHistory(int roomId, long beforeSeq, int limit) {
+        return request("GetHistory " + roomId + " " + beforeSeq + " " + limit);
+    }
+
+    // Sends the command tagged with a new request id. The future fails with
+    // RateLimitedException when the server refuses it, and with the connection's
+    // error once the connection is gone.
+    private <T> CompletableFuture<T> request(String command) {
+        long id = nextRequest.getAndIncrement();
+        CompletableFuture<T> reply = new CompletableFuture<>();
+        pending.put(id, reply);
+        out.println("@" + id + " " + command);
+        IOException error = closed;
+        if (error != null && pending.remove(id) != null) {
+            reply.completeExceptionally(error);
+        }
+        return reply;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> void complete(long id, T value) {
+        CompletableFuture<T> reply = (CompletableFuture<T>) pending.remove(id);
+        if (reply != null) {
+            reply.complete(value);
+        }
+    }
+
+    private void fail(long id, IOException error) {
+        CompletableFuture<?> reply = pending.remove(id);
+        if (reply != null) {
+            reply.completeExceptionally(error);
+        }
+    }
+
+    void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+        }
+    }
+
+    private void read() {
+        IOException error = null;
+        try {
+            String response;
+            while ((response = in.readLine()) != null) {
+                // @<id> starts the line ending the reply to a tagged request
+                long id = 0;
+                if (response.startsWith("@")) {
+                    int space = response.indexOf(' ');
+                    id = Long.parseLong(response.substring(1, space));
+                    response = response.substring(space + 1);
+                }
+                if (response.startsWith("NewRoom")) {
+                    listener.newRoom(parseRoom(response));
+                } else if (response.startsWith("RoomCreated")) {
+                    complete(id, parseRoom(response));
+                } else if (response.startsWith("Message ")) {
+                    // Message <roomId> <sender>: <text>
+                    String[] tokens = response.split(" ", 3);
+                    listener.message(Integer.parseInt(tokens[1]), tokens[2]);
+                } else if (response.startsWith("History ")) {
+                    // History <roomId> <seq> <millis> <sender>: <text>
+                    historyLines.add(response.split(" ", 5)[4]);
+                } else if (response.startsWith("EndOfHistory ")) {
+                    // EndOfHistory <roomId> <nextBeforeSeq>
+                    String[] tokens = response.split(" ", 3);
+                    List<String> lines = historyLines;
+                    historyLines = new ArrayList<>();
+                    complete(id, new HistoryPage(Integer.parseInt(tokens[1]), lines, Long.parseLong(tokens[2])));
+                } else if (response.equals("Ping")) {
+                    // Heartbeat from a server that has not heard from us for a while
+                    out.println("Pong");
+                } else if (response.equals("ServerBusy")) {
+                    // Turned away by admission control, the server closes the connection
+                    throw new IOException("Server is busy, try again later");
+                } else if (response.startsWith("RateLimited ")) {
+                    String command = response.substring("RateLimited ".length());
+                    if (id != 0) {
+                        fail(id, new RateLimitedException(command));
+                    } else {
+                        listener.rateLimited(command);
+                    }
+                } else if (response.startsWith("NodeUnavailable ")) {
+                    fail(id, new NodeUnavailableException(response.substring("NodeUnavailable ".length())));
+                } else if (response.equals("UnknownCommand")) {
+                    fail(id, new IOException("Server does not know the command"));
+                } else if (response.equals("RoomListChanged")) {
+                    // Server collapsed NewRoom notifications we were too slow to read
+                    getRooms();
+                } else if (response.equals("RoomListReset")) {
+                    listener.roomListReset();
+                } else if (response.startsWith("RoomDeleted")) {
+                    listener.roomDeleted(Integer.parseInt(response.split(" ", 2)[1]));
+                } else if (response.startsWith("Room")) {
+                    listener.roomListed(parseRoom(response));
+                } else if (response.startsWith("EndOfRoomList")) {
+                    // EndOfRoomList <version>
+                    String[] tokens = response.split(" ", 2);
+                    if (tokens.length == 2) {
+                        roomListVersion = Long.parseLong(tokens[1]);
+                    }
+                    complete(id, roomListVersion);
+                }
+            }
+        } catch (IOException e) {
+            error = e;
+        } catch (RuntimeException e) {
+            // A line we cannot parse: the stream can no longer be trusted, so the
+            // connection ends like any other failure and nothing waits on it forever
+            error = new IOException("Malformed line from the server", e);
+            close();
+        }
+        closed = error != null ? error : new EOFException("Connection closed");
+        for (Long id : pending.keySet()) {
+            fail(id, closed);
+        }
+        listener.disconnected(error);
+    }
+
+    // <command> <id> <name> <creator> <groupAddress> <groupPort>, the address is "-"
+    // when the server gave the room no group. The name may contain spaces, so the other
+    // fields are taken from the end; the creator never does. Lines of older servers
+    // without the group fields hold just the name.
+    static Room parseRoom(String line) throws UnknownHostException {
+        String[] tokens = line.split(" ", 3);
+        int id = Integer.parseInt(tokens[1]);
+        String rest = tokens.length == 3 ? tokens[2] : "";
+        String[] fields = rest.split(" ");
+        int n = fields.length;
+        if (n < 4 || !fields[n - 1].matches("\\d+") || !isAddressLiteral(fields[n - 2])) {
+            return new Room(id, rest);
+        }
+        String name = String.join(" ", Arrays.asList(fields).subList(0, n - 3));
+        if (fields[n - 2].equals("-")) {
+            return new Room(id, name);
+        }
+        try {
+            // A literal, so no name lookup happens
+            InetAddress multicastAddress = InetAddress.getByName(fields[n - 2]);
+            return new Room(id, name, fields[n - 3], multicastAddress, Integer.parseInt(fields[n - 1]));
+        } catch (UnknownHostException e) {
+            // Looked like an IPv6 address but was part of the name
+            return new Room(id, rest);
+        }
+    }
+
+    private static boolean isAddressLiteral(String text) {
+        return text.equals("-") || text.matches("\\d{1,3}(\\.\\d{1,3}){3}") || text.matches("[0-9a-fA-F.]*:[0-9a-fA-F:.]*");
+    }
+
+    // A page answering GetHistory, lines oldest first and formatted like
+    // Listener.message(); nextBeforeSeq asks for the page before it, 0 when there is none
+    static final class HistoryPage {
+        final int roomId;
+        final List<String> lines;
+        final long nextBeforeSeq;
+
+        HistoryPage(int roomId, List<String> lines, long nextBeforeSeq) {
+            this.roomId = roomId;
+            this.lines = lines;
+            this.nextBeforeSeq = nextBeforeSeq;
+        }
+    }
+
+    // The server refused the request for going over one of its rate limits
+    static class RateLimitedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        final String command;
+
+        RateLimitedException(String command) {
+            super(command + " refused by the server's rate limit");
+            this.command = command;
+        }
+    }
+
+    // The server handed the request to another cluster node, which went away before answering
+    static class NodeUnavailableException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        NodeUnavailableException(String command) {
+            super(command + " not answered, the cluster node handling it left");
+        }
+    }
+
+    // A room as the client knows it
+    static class Room {
+        private int id;
+        private String name;
+        private String creator;
+        private InetAddress groupAddress;
+        private int groupPort;
+
+        public Room(int id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+
+        public Room(int id, String name, String creator, InetAddress groupAddress, int groupPort) {
+            this(id, name);
+            this.creator = creator;
+            this.groupAddress = groupAddress;
+            this.groupPort = groupPort;
+        }
+
+        // Getter methods
+        public int getId() { return id; }
+        public String getName() { return name; }
+        public String getCreator() { return creator; }
+        public InetAddress getGroupAddress() { return groupAddress; }
+        public int getGroupPort() { return groupPort; }
+    }
+}
@@ -0,0 +1,262 @@
+package chatroom;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Server log. Handler threads only claim a slot in a lock-free ring and store the
+// message; a background writer formats whole batches, writes each batch with one call
+// and rolls the file by size. A full ring drops lines instead of blocking the caller,
+// the writer reports how many.
+//   -Dchat.log.file=chat-server.log   empty for console only
+//   -Dchat.log.maxBytes=10485760 -Dchat.log.maxFiles=5 -Dchat.log.console=true
+//   -Dchat.log.bufferSize=65536       ring slots, rounded up to a power of two
+// Lines read "<timestamp> <LEVEL> [<thread>] - <message>".
+final class ChatLog {
+    private static final int CAPACITY = Integer.highestOneBit(Math.max(2, Integer.getInteger("chat.log.bufferSize", 65536) * 2 - 1));
+    private static final int MASK = CAPACITY - 1;
+    private static final String FILE = System.getProperty("chat.log.file", "chat-server.log");
+    private static final long MAX_BYTES = Long.getLong("chat.log.maxBytes", 10L * 1024 * 1024);
+    private static final int MAX_FILES = Integer.getInteger("chat.log.maxFiles", 5);
+    private static final boolean CONSOLE = Boolean.parseBoolean(System.getProperty("chat.log.console", "true"));
+    private static final int MAX_BATCH = 1024;
+
+    private static final DateTimeFormatter TIMESTAMP_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+    // Last formatted second, replaced as a whole so any thread may read it
+    private static volatile CachedTimestamp cachedTimestamp = new CachedTimestamp(Long.MIN_VALUE, "");
+
+    private static final Slot[] slots = new Slot[CAPACITY];
+    // Next sequence to claim, and next one the writer will read
+    private static final AtomicLong claimed = new AtomicLong();
+    private static volatile long consumed;
+    private static volatile boolean writerParked;
+    private static volatile boolean closing;
+    private static final LongAdder dropped = new LongAdder();
+    private static final Thread writer;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            slots[i] = new Slot(i - CAPACITY);
+        }
+        writer = new Thread(new Writer(), "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(ChatLog::close, "log-shutdown"));
+    }
+
+    private ChatLog() {
+    }
+
+    static void info(String message) {
+        log("INFO", message);
+    }
+
+    static void warn(String message) {
+        log("WARN", message);
+    }
+
+    static void error(String message, Throwable error) {
+        log("ERROR", message + ": " + error);
+    }
+
+    private static void log(String level, String message) {
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - consumed >= CAPACITY) {
+                dropped.increment();
+                return;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+
+        Slot slot = slots[(int) sequence & MASK];
+        slot.millis = System.currentTimeMillis();
+        slot.level = level;
+        slot.thread = Thread.currentThread().getName();
+        slot.message = message;
+        // Publishes the fields above to the writer
+        slot.sequence = sequence;
+        if (writerParked) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    // yyyy-MM-dd HH:mm:ss, formatted once per second whichever thread asks
+    static String timestamp(long millis) {
+        long second = Math.floorDiv(millis, 1000);
+        CachedTimestamp cached = cachedTimestamp;
+        if (cached.second != second) {
+            cached = new CachedTimestamp(second, TIMESTAMP_FORMAT.format(Instant.ofEpochSecond(second)));
+            cachedTimestamp = cached;
+        }
+        return cached.text;
+    }
+
+    static long dropped() {
+        return dropped.sum();
+    }
+
+    // Lets the writer empty the ring before the JVM exits
+    private static void close() {
+        closing = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(2));
+        } catch (InterruptedException e) {
+        }
+    }
+
+    private static class Writer implements Runnable {
+        private final StringBuilder batch = new StringBuilder(64 * 1024);
+        private final PrintStream console = System.out;
+        private OutputStream file;
+        private long fileSize;
+        private long droppedReported;
+
+        public void run() {
+            openFile();
+            long next = consumed;
+            while (true) {
+                int count = 0;
+                Slot slot;
+                while (count < MAX_BATCH && (slot = slots[(int) next & MASK]).sequence == next) {
+                    format(slot);
+                    slot.message = null;
+                    next++;
+                    count++;
+                }
+                if (count > 0) {
+                    consumed = next;
+                }
+                long droppedNow = dropped.sum();
+                if (droppedNow != droppedReported) {
+                    appendLine(System.currentTimeMillis(), "WARN", "log-writer",
+                            (droppedNow - droppedReported) + " log lines dropped, ring full");
+                    droppedReported = droppedNow;
+                }
+                if (batch.length() > 0) {
+                    write();
+                    continue;
+                }
+                if (closing) {
+                    return;
+                }
+                writerParked = true;
+                if (slots[(int) next & MASK].sequence != next && !closing) {
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+                }
+                writerParked = false;
+            }
+        }
+
+        private void format(Slot slot) {
+            appendLine(slot.millis, slot.level, slot.thread, slot.message);
+        }
+
+        private void appendLine(long millis, String level, String thread, String message) {
+            batch.append(timestamp(millis)).append(' ').append(level)
+                    .append(" [").append(thread).append("] - ").append(message).append('\n');
+        }
+
+        // One console write and one file write per batch
+        private void write() {
+            byte[] bytes = batch.toString().getBytes(StandardCharsets.UTF_8);
+            batch.setLength(0);
+            if (CONSOLE) {
+                console.write(bytes, 0, bytes.length);
+                console.flush();
+            }
+            if (file == null) {
+                return;
+            }
+            try {
+                if (fileSize > 0 && fileSize + bytes.length > MAX_BYTES) {
+                    roll();
+                }
+                file.write(bytes);
+                file.flush();
+                fileSize += bytes.length;
+            } catch (IOException e) {
+                console.println("Log file write failed, logging to console only: " + e);
+                closeFile();
+            }
+        }
+
+        private void openFile() {
+            if (FILE.isEmpty()) {
+                return;
+            }
+            try {
+                Path path = Paths.get(FILE);
+                fileSize = Files.exists(path) ? Files.size(path) : 0;
+                file = new FileOutputStream(path.toFile(), true);
+            } catch (IOException e) {
+                console.println("Cannot open log file " + FILE + ", logging to console only: " + e);
+            }
+        }
+
+        // chat-server.log -> chat-server.log.1 -> ... -> chat-server.log.<maxFiles>, the oldest is deleted
+        private void roll() throws IOException {
+            closeFile();
+            Path path = Paths.get(FILE);
+            Files.deleteIfExists(Paths.get(FILE + "." + MAX_FILES));
+            for (int i = MAX_FILES - 1; i >= 1; i--) {
+                Path older = Paths.get(FILE + "." + i);
+                if (Files.exists(older)) {
+                    Files.move(older, Paths.get(FILE + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            if (MAX_FILES > 0) {
+                Files.move(path, Paths.get(FILE + ".1"), StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                Files.deleteIfExists(path);
+            }
+            file = new FileOutputStream(path.toFile(), false);
+            fileSize = 0;
+        }
+
+        private void closeFile() {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                }
+                file = null;
+            }
+        }
+    }
+
+    // Preallocated ring entry; the fields are written before sequence is published
+    private static final class Slot {
+        volatile long sequence;
+        long millis;
+        String level;
+        String thread;
+        String message;
+
+        Slot(long sequence) {
+            this.sequence = sequence;
+        }
+    }
+
+    private static final class CachedTimestamp {
+        final long second;
+        final String text;
+
+        CachedTimestamp(long second, String text) {
+            this.second = second;
+            this.text = text;
+        }
+    }
+}
@@ -0,0 +1,435 @@
+package chatroom;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Cluster mode: rooms are spread over the nodes by consistent hashing of their ids.
+// Every node lists every room, so GetRooms is still answered from the node's own
+// registry; owners announce their rooms to the other nodes as they come and go, and
+// in full whenever a link comes up, instead of being asked on each request.
+// The owner of a room holds its members across the cluster, numbers, logs and caches
+// its messages, and relays each message once to every node with members in the room,
+// which fans it out to its own connections. The other nodes forward joins, leaves,
+// chat lines and history requests for the room to its owner. A new room goes to the
+// owner of a random point on the ring among the nodes we can reach, which picks one
+// of its own ids for it. A request another node has to answer is failed with
+// NodeUnavailable when that node cannot be reached, goes away or does not answer
+// within -Dchat.cluster.requestTimeoutMillis.
+// Each node should give out multicast groups from its own chat.multicast.base range.
+final class Cluster implements ClusterBus.Receiver {
+    // Bus opcodes, fields encoded as by BinaryProtocol
+    static final byte CREATE_ROOM = 1;   // varlong request, string roomName, string creator
+    static final byte ROOM_CREATED = 2;  // varlong request (0 for an announcement), varint roomId, string roomName, string creator, group
+    static final byte ROOM_DELETED = 3;  // varint roomId
+    static final byte JOIN = 4;          // varint roomId, string userName
+    static final byte LEAVE = 5;         // varint roomId, string userName
+    static final byte MESSAGE = 6;       // varint roomId, string sender, string text
+    static final byte DELIVER = 7;       // varint roomId, string sender, string text
+    static final byte GET_HISTORY = 8;   // varlong request, varint roomId, varlong beforeSeq, varint limit
+    static final byte HISTORY = 9;       // varlong request, varint roomId, varlong nextBeforeSeq, varint count,
+                                         // then per message varlong seq, varlong millis, string sender, string text
+
+    private static final int POINTS_PER_NODE = Integer.getInteger("chat.cluster.pointsPerNode", 128);
+    private static final long REQUEST_TIMEOUT_NANOS =
+            TimeUnit.MILLISECONDS.toNanos(Integer.getInteger("chat.cluster.requestTimeoutMillis", 5000));
+
+    private final MultiCastServer.Node node;
+    private final ClusterBus bus;
+    private final String self;
+    private final HashRing ring;
+    private final AtomicLong nextRequest = new AtomicLong(1);
+    // Connections waiting for another node's answer, by request id
+    private final Map<Long, Pending> pending = new ConcurrentHashMap<>();
+
+    Cluster(MultiCastServer.Node node, ClusterBus bus) {
+        this.node = node;
+        this.bus = bus;
+        this.self = bus.self();
+        this.ring = new HashRing(bus.nodes(), POINTS_PER_NODE);
+        node.rooms.ownedBy(this::owns);
+    }
+
+    // Joins the cluster; the node's own rooms must be in its registry by now
+    void start() throws IOException {
+        node.cluster = this;
+        bus.start(this);
+    }
+
+    String self() {
+        return self;
+    }
+
+    boolean owns(int roomId) {
+        return ring.owner(roomId).equals(self);
+    }
+
+    // Commands from this node's connections
+
+    // False when this node is picked to own the room and the caller creates it as usual
+    boolean forwardCreateRoom(String roomName, MultiCastServer.ClientHandler creator) {
+        String owner = ring.owner(ThreadLocalRandom.current().nextLong(), n -> n.equals(self) || bus.reachable(n));
+        if (owner.equals(self)) {
+            return false;
+        }
+        long request = nextRequest.getAndIncrement();
+        String creatorName = creator.getUserName();
+        request(owner, creator, "CreateRoom", request,
+                BinaryProtocol.encode(CREATE_ROOM, request, roomName, creatorName != null ? creatorName : "-"));
+        return true;
+    }
+
+    // A room created here, for the other nodes to list
+    void roomCreated(MultiCastServer.Room room) {
+        ByteBuffer frame = roomCreatedFrame(0, room);
+        for (String peer : peers()) {
+            bus.send(peer, frame);
+        }
+    }
+
+    // A room of ours removed, the other nodes drop it
+    void roomDeleted(MultiCastServer.Room room) {
+        ByteBuffer frame = BinaryProtocol.encode(ROOM_DELETED, room.getId());
+        for (String peer : peers()) {
+            bus.send(peer, frame);
+        }
+    }
+
+    // A connection here became a member of the room
+    void joined(MultiCastServer.Room room, String userName) {
+        if (!owns(room.getId())) {
+            bus.send(ring.owner(room.getId()), BinaryProtocol.encode(JOIN, room.getId(), String.valueOf(userName)));
+        }
+    }
+
+    // A connection here left another node's room
+    void left(MultiCastServer.Room room, String userName) {
+        bus.send(ring.owner(room.getId()), BinaryProtocol.encode(LEAVE, room.getId(), String.valueOf(userName)));
+    }
+
+    // Our own rooms are relayed from here, others' go to their owner, which relays
+    // the line back to us along with every other node in the room. False when our room
+    // is over its outbound rate and the message was dropped; the owner drops a
+    // forwarded one silently.
+    boolean sendMessage(MultiCastServer.Room room, String sender, String text) {
+        if (owns(room.getId())) {
+            return relay(room, String.valueOf(sender), text);
+        }
+        bus.send(ring.owner(room.getId()), BinaryProtocol.encode(MESSAGE, room.getId(), String.valueOf(sender), text));
+        return true;
+    }
+
+    // For a room another node owns
+    void getHistory(int roomId, long beforeSeq, int limit, MultiCastServer.ClientHandler requester) {
+        long request = nextRequest.getAndIncrement();
+        request(ring.owner(roomId), requester, "GetHistory", request,
+                BinaryProtocol.encode(GET_HISTORY, request, roomId, beforeSeq, limit));
+    }
+
+    // Sends a request the owner answers later, or fails it right away when the owner
+    // cannot be reached
+    private void request(String owner, MultiCastServer.ClientHandler handler, String command, long request,
+            ByteBuffer frame) {
+        Pending waiting = new Pending(owner, handler, handler.requestId, command);
+        if (!bus.reachable(owner)) {
+            fail(waiting);
+            return;
+        }
+        pending.put(request, waiting);
+        // The frame can still be lost with the link
+        MultiCastServer.timers.schedule(() -> {
+            if (pending.remove(request, waiting)) {
+                fail(waiting);
+            }
+        }, REQUEST_TIMEOUT_NANOS);
+        bus.send(owner, frame);
+    }
+
+    private static void fail(Pending waiting) {
+        MultiCastServer.ClientHandler handler = waiting.handler;
+        handler.reply(handler.protocol.tagged(waiting.clientRequest, handler.protocol.nodeUnavailable(waiting.command)));
+    }
+
+    // Frames from the other nodes
+
+    public void received(String from, ByteBuffer frame) {
+        try {
+            byte opcode = frame.get();
+            switch (opcode) {
+                case CREATE_ROOM:
+                    createRoom(from, BinaryProtocol.readVarLong(frame), BinaryProtocol.readString(frame),
+                            BinaryProtocol.readString(frame));
+                    break;
+                case ROOM_CREATED:
+                    adoptRoom(BinaryProtocol.readVarLong(frame), BinaryProtocol.readVarInt(frame),
+                            BinaryProtocol.readString(frame), BinaryProtocol.readString(frame), readGroup(frame));
+                    break;
+                case ROOM_DELETED:
+                    dropRoom(BinaryProtocol.readVarInt(frame));
+                    break;
+                case JOIN:
+                    remoteJoin(from, BinaryProtocol.readVarInt(frame), BinaryProtocol.readString(frame));
+                    break;
+                case LEAVE:
+                    remoteLeave(from, BinaryProtocol.readVarInt(frame), BinaryProtocol.readString(frame));
+                    break;
+                case MESSAGE: {
+                    MultiCastServer.Room room = ownRoom(BinaryProtocol.readVarInt(frame));
+                    String sender = BinaryProtocol.readString(frame);
+                    String text = BinaryProtocol.readString(frame);
+                    if (room != null) {
+                        relay(room, sender, text);
+                    }
+                    break;
+                }
+                case DELIVER: {
+                    MultiCastServer.Room room = node.rooms.getById(BinaryProtocol.readVarInt(frame));
+                    String sender = BinaryProtocol.readString(frame);
+                    String text = BinaryProtocol.readString(frame);
+                    if (room != null) {
+                        room.broadcastMessage(sender, text);
+                    }
+                    break;
+                }
+                case GET_HISTORY:
+                    serveHistory(from, BinaryProtocol.readVarLong(frame), BinaryProtocol.readVarInt(frame),
+                            BinaryProtocol.readVarLong(frame), BinaryProtocol.readVarInt(frame));
+                    break;
+                case HISTORY:
+                    historyReceived(frame);
+                    break;
+                default:
+                    ChatLog.warn("Unknown cluster opcode " + opcode + " from " + from);
+            }
+        } catch (RuntimeException | WireProtocol.ProtocolException e) {
+            ChatLog.error("Bad cluster frame from " + from, e);
+        }
+    }
+
+    // Tells the peer about every room we own; rooms it already lists are skipped there
+    public void connected(String peer) {
+        for (MultiCastServer.Room room : node.rooms.all()) {
+            if (owns(room.getId())) {
+                bus.send(peer, roomCreatedFrame(0, room));
+            }
+        }
+    }
+
+    // The peer's rooms are gone, as are its members of ours and its answers; whoever
+    // waits for one is told, so a client's request does not hang
+    public void disconnected(String peer) {
+        for (MultiCastServer.Room room : node.rooms.all()) {
+            if (owns(room.getId())) {
+                room.removeRemoteMembers(peer, Integer.MAX_VALUE);
+                removeIfEmpty(room);
+            } else if (ring.owner(room.getId()).equals(peer)) {
+                dropRoom(room.getId());
+            }
+        }
+        for (Map.Entry<Long, Pending> entry : pending.entrySet()) {
+            Pending waiting = entry.getValue();
+            // The answer or the timeout may come at the same time, only one of us replies
+            if (waiting.node.equals(peer) && pending.remove(entry.getKey(), waiting)) {
+                fail(waiting);
+            }
+        }
+    }
+
+    // On the owner: the creator's node counts one member, the creator itself
+    private void createRoom(String from, long request, String roomName, String creatorName) {
+        MultiCastServer.Room room = node.rooms.create(roomName, creatorName);
+        room.addRemoteMember(from);
+        ChatLog.info("User '" + creatorName + "' on " + from + " created room '" + roomName + "'");
+        node.announceRoom(room, null);
+        ByteBuffer announcement = roomCreatedFrame(0, room);
+        for (String peer : peers()) {
+            bus.send(peer, peer.equals(from) ? roomCreatedFrame(request, room) : announcement);
+        }
+    }
+
+    // A room created or announced by its owner. Answers our creator's request, whose
+    // connection is then in the room.
+    private void adoptRoom(long request, int roomId, String roomName, String creatorName, InetSocketAddress group) {
+        MultiCastServer.Room room = node.rooms.adopt(roomId, roomName, creatorName, group);
+        Pending waiting = request != 0 ? pending.remove(request) : null;
+        MultiCastServer.ClientHandler creator = waiting != null ? waiting.handler : null;
+        if (room == null) {
+            room = node.rooms.getById(roomId);
+            if (room == null || creator == null) {
+                return;
+            }
+        } else {
+            node.announceRoom(room, creator);
+        }
+        if (creator == null) {
+            return;
+        }
+        if (node.clients.contains(creator) && room.addMember(creator)) {
+            creator.reply(creator.protocol.tagged(waiting.clientRequest,
+                    creator.protocol.roomCreated(room.getId(), room.getName(), room.getCreatorName(), room.getGroup())));
+        } else {
+            // Gone before the answer came, the owner counted it in the room
+            left(room, creator.getUserName());
+        }
+    }
+
+    // Another node's room removed by its owner
+    private void dropRoom(int roomId) {
+        if (owns(roomId)) {
+            return;
+        }
+        MultiCastServer.Room room = node.rooms.remove(roomId);
+        if (room != null) {
+            node.roomRemoved(room);
+        }
+    }
+
+    private void remoteJoin(String from, int roomId, String userName) {
+        MultiCastServer.Room room = ownRoom(roomId);
+        if (room == null || !room.addRemoteMember(from)) {
+            // Removed meanwhile; the member's node drops it too
+            bus.send(from, BinaryProtocol.encode(ROOM_DELETED, roomId));
+            return;
+        }
+        ChatLog.info("User '" + userName + "' on " + from + " joined room '" + room.getName() + "'");
+    }
+
+    private void remoteLeave(String from, int roomId, String userName) {
+        MultiCastServer.Room room = ownRoom(roomId);
+        if (room != null) {
+            room.removeRemoteMembers(from, 1);
+            ChatLog.info("User '" + userName + "' on " + from + " left room '" + room.getName() + "'");
+            removeIfEmpty(room);
+        }
+    }
+
+    private void removeIfEmpty(MultiCastServer.Room room) {
+        if (room.getMemberCount() == 0 && node.rooms.removeIfEmpty(room)) {
+            ChatLog.info("Room '" + room.getName() + "' is empty, removed");
+            node.roomRemoved(room);
+        }
+    }
+
+    // On the owner: to our members, into the log and history, then once to every
+    // node with members
+    private boolean relay(MultiCastServer.Room room, String sender, String text) {
+        if (node.rooms.logBacklogged() || !room.admitMessage()) {
+            return false;
+        }
+        room.broadcastMessage(sender, text);
+        node.rooms.messageSent(room, sender, text);
+        String[] nodes = room.remoteNodes();
+        if (nodes.length > 0) {
+            ByteBuffer frame = BinaryProtocol.encode(DELIVER, room.getId(), sender, text);
+            for (String member : nodes) {
+                bus.send(member, frame);
+            }
+        }
+        return true;
+    }
+
+    // Like a local GetHistory, disk reads on the history reader
+    private void serveHistory(String from, long request, int roomId, long beforeSeq, int limit) {
+        List<EventLog.MessageRecord> page = new ArrayList<>();
+        long nextBeforeSeq = node.rooms.cachedHistory(roomId, beforeSeq, limit, page);
+        if (nextBeforeSeq >= 0) {
+            bus.send(from, historyFrame(request, roomId, page, nextBeforeSeq));
+        } else {
+            MultiCastServer.historyReader.execute(() -> {
+                long next = node.rooms.history(roomId, beforeSeq, limit, page);
+                bus.send(from, historyFrame(request, roomId, page, next));
+            });
+        }
+    }
+
+    private void historyReceived(ByteBuffer frame) throws WireProtocol.ProtocolException {
+        Pending waiting = pending.remove(BinaryProtocol.readVarLong(frame));
+        int roomId = BinaryProtocol.readVarInt(frame);
+        long nextBeforeSeq = BinaryProtocol.readVarLong(frame);
+        int count = BinaryProtocol.readVarInt(frame);
+        List<EventLog.MessageRecord> page = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            page.add(new EventLog.MessageRecord(BinaryProtocol.readVarLong(frame), BinaryProtocol.readVarLong(frame),
+                    BinaryProtocol.readString(frame), BinaryProtocol.readString(frame)));
+        }
+        if (waiting != null) {
+            waiting.handler.reply(waiting.handler.protocol.tagged(waiting.clientRequest,
+                    waiting.handler.protocol.history(roomId, page, nextBeforeSeq)));
+        }
+    }
+
+    private MultiCastServer.Room ownRoom(int roomId) {
+        return owns(roomId) ? node.rooms.getById(roomId) : null;
+    }
+
+    private List<String> peers() {
+        List<String> peers = new ArrayList<>(bus.nodes());
+        peers.remove(self);
+        return peers;
+    }
+
+    private static ByteBuffer roomCreatedFrame(long request, MultiCastServer.Room room) {
+        InetSocketAddress group = room.getGroup();
+        byte[] address = group != null ? group.getAddress().getAddress() : new byte[0];
+        return BinaryProtocol.encode(ROOM_CREATED, request, room.getId(), room.getName(), room.getCreatorName(),
+                address, group != null ? group.getPort() : 0);
+    }
+
+    private static InetSocketAddress readGroup(ByteBuffer frame) throws WireProtocol.ProtocolException {
+        int length = BinaryProtocol.readVarInt(frame);
+        if (length > frame.remaining()) {
+            throw new WireProtocol.ProtocolException("Truncated group address");
+        }
+        byte[] address = new byte[length];
+        frame.get(address);
+        int port = BinaryProtocol.readVarInt(frame);
+        if (length == 0) {
+            return null;
+        }
+        try {
+            return new InetSocketAddress(InetAddress.getByAddress(address), port);
+        } catch (IOException e) {
+            throw new WireProtocol.ProtocolException("Bad group address");
+        }
+    }
+
+    private static ByteBuffer historyFrame(long request, int roomId, List<EventLog.MessageRecord> page, long nextBeforeSeq) {
+        Object[] fields = new Object[4 + 4 * page.size()];
+        fields[0] = request;
+        fields[1] = roomId;
+        fields[2] = nextBeforeSeq;
+        fields[3] = page.size();
+        int i = 4;
+        for (EventLog.MessageRecord message : page) {
+            fields[i++] = message.lsn;
+            fields[i++] = message.millis;
+            fields[i++] = message.sender;
+            fields[i++] = message.text;
+        }
+        return BinaryProtocol.encode(HISTORY, fields);
+    }
+
+    // A connection waiting on another node, answered NodeUnavailable if that node goes
+    // away; clientRequest is the id the client tagged its request with
+    private static final class Pending {
+        final String node;
+        final MultiCastServer.ClientHandler handler;
+        final long clientRequest;
+        final String command;
+
+        Pending(String node, MultiCastServer.ClientHandler handler, long clientRequest, String command) {
+            this.node = node;
+            this.handler = handler;
+            this.clientRequest = clientRequest;
+            this.command = command;
+        }
+    }
+}
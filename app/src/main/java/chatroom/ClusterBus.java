@@ -0,0 +1,64 @@
+package chatroom;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Carries frames between the nodes of a cluster. A frame is built with
+// BinaryProtocol.encode and handed to the receiver without its length prefix,
+// positioned at the opcode. Frames to one node arrive in the order they were sent;
+// frames for a node that is not connected are dropped.
+interface ClusterBus extends Closeable {
+    interface Receiver {
+        // Called on a bus thread, one frame at a time per sending node
+        void received(String from, ByteBuffer frame);
+
+        // Frames can now be sent to node
+        void connected(String node);
+
+        // node went away, whatever it announced no longer holds
+        void disconnected(String node);
+    }
+
+    // This node's name
+    String self();
+
+    // Every node's name including ours, in the same order on every node
+    List<String> nodes();
+
+    void start(Receiver receiver) throws IOException;
+
+    void send(String node, ByteBuffer frame);
+
+    // Whether frames sent to node go out now; one sent anyway can still be lost if the
+    // link fails before it is written
+    boolean reachable(String node);
+
+    // Node-to-node TCP as configured, null outside cluster mode:
+    //   -Dchat.cluster.nodes=a=10.0.0.1:7000,b=10.0.0.2:7000 -Dchat.cluster.node=a
+    static ClusterBus fromProperties() {
+        String nodes = System.getProperty("chat.cluster.nodes", "");
+        if (nodes.isEmpty()) {
+            return null;
+        }
+        Map<String, InetSocketAddress> addresses = new LinkedHashMap<>();
+        for (String entry : nodes.split(",")) {
+            String[] nameAndAddress = entry.trim().split("=", 2);
+            int colon = nameAndAddress.length == 2 ? nameAndAddress[1].lastIndexOf(':') : -1;
+            if (colon < 0) {
+                throw new IllegalArgumentException("Bad chat.cluster.nodes entry " + entry + ", expected name=host:port");
+            }
+            addresses.put(nameAndAddress[0], new InetSocketAddress(nameAndAddress[1].substring(0, colon),
+                    Integer.parseInt(nameAndAddress[1].substring(colon + 1))));
+        }
+        String self = System.getProperty("chat.cluster.node", "");
+        if (!addresses.containsKey(self)) {
+            throw new IllegalArgumentException("chat.cluster.node " + self + " is not one of chat.cluster.nodes");
+        }
+        return new TcpClusterBus(self, addresses);
+    }
+}
@@ -0,0 +1,620 @@
+package chatroom;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+// Append-only log of room creation, room deletion and chat messages, so rooms survive a
+// restart. Appending only encodes the record into a buffer under a short lock; the
+// writer thread writes and fsyncs whatever piled up once per flush interval (group
+// commit), so a crash loses at most the last interval. The log is split into segments
+// named by their first sequence number. Each roll also writes the live rooms to a
+// snapshot, and startup loads the newest snapshot and replays only the records after
+// it, reading the segments through memory maps. Older chat messages are read back
+// from the segments still on disk for room history.
+//   -Dchat.wal.dir=chat-wal                 empty turns persistence off
+//   -Dchat.wal.flushMillis=5 -Dchat.wal.segmentBytes=67108864 -Dchat.wal.retainSegments=8
+// Record: int length of the rest, int crc32c of what follows it, byte type, long lsn,
+// payload. Replay stops at the first short or damaged record, a torn last write.
+final class EventLog implements Closeable {
+    static final byte ROOM_CREATED = 1;
+    static final byte ROOM_DELETED = 2;
+    static final byte MESSAGE = 3;
+
+    private static final int RECORD_HEADER = 4 + 4 + 1 + 8;
+    // Beyond this chat messages are not logged until the writer catches up, rather than
+    // growing without bound or blocking the appender, which may be an event loop or hold
+    // the room registry's lock. Room records are still taken: they are few and rate
+    // limited, and losing one would lose the room.
+    private static final int MAX_PENDING = 8 * 1024 * 1024;
+    private static final int SNAPSHOT_MAGIC = 0x43484155;
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+
+    private static final Metrics.Counter records = Metrics.counter("chat_wal_records_total",
+            "Records appended to the event log", "");
+    private static final Metrics.Counter unpersisted = Metrics.counter("chat_wal_unpersisted_total",
+            "Chat messages not logged because the writer fell behind", "");
+    private static final Metrics.Counter bytesWritten = Metrics.counter("chat_wal_bytes_total",
+            "Bytes written to the event log", "");
+    private static final Metrics.Histogram commitTime = Metrics.histogram("chat_wal_commit_seconds",
+            "Time to write and fsync one group commit", "", 1e-9);
+    private static final Metrics.Histogram commitRecords = Metrics.histogram("chat_wal_commit_records",
+            "Records per group commit", "", 1);
+
+    private final Path dir;
+    private final long segmentBytes;
+    private final long flushNanos;
+    private final int retainSegments;
+
+    // Guarded by this: the buffer appenders write into, the next sequence number and
+    // the live rooms as of the last appended record, which snapshots are taken from
+    private ByteBuffer pending = ByteBuffer.allocate(64 * 1024);
+    private int pendingRecords;
+    private int recordStart;
+    private long nextLsn = 1;
+    private final TreeMap<Integer, RoomRecord> rooms = new TreeMap<>();
+    private int nextRoomId;
+    private volatile boolean closing;
+    // Set once pending reaches MAX_PENDING, cleared when the writer takes the batch
+    private volatile boolean backlogged;
+    private final CRC32C crc = new CRC32C();
+
+    // Owned by the writer thread once started
+    private ByteBuffer writing = ByteBuffer.allocate(64 * 1024);
+    private FileChannel active;
+    private long activeSize;
+    // First sequence number of every segment, oldest first; history readers copy it
+    // under its own lock
+    private final ArrayDeque<Long> segments = new ArrayDeque<>();
+    private long snapshotLsn;
+    private Thread writer;
+
+    private EventLog(Path dir, long segmentBytes, int flushMillis, int retainSegments) {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.flushNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, flushMillis));
+        this.retainSegments = Math.max(1, retainSegments);
+    }
+
+    // Null when persistence is turned off
+    static EventLog fromProperties() throws IOException {
+        String dir = System.getProperty("chat.wal.dir", "chat-wal");
+        if (dir.isEmpty()) {
+            return null;
+        }
+        return open(Paths.get(dir));
+    }
+
+    // Recovers what the directory holds and starts the writer
+    static EventLog open(Path dir) throws IOException {
+        // Segments are mapped whole, so they stay well below 2 GB
+        long segmentBytes = Math.min(Long.getLong("chat.wal.segmentBytes", 64L * 1024 * 1024), 1L << 30);
+        EventLog log = new EventLog(dir, segmentBytes,
+                Integer.getInteger("chat.wal.flushMillis", 5), Integer.getInteger("chat.wal.retainSegments", 8));
+        log.recover();
+        log.writer = new Thread(log::writeLoop, "wal-writer");
+        log.writer.setDaemon(true);
+        log.writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(log::close, "wal-shutdown"));
+        return log;
+    }
+
+    // Live rooms in id order, as recovered or as of the last append
+    synchronized List<RoomRecord> rooms() {
+        return new ArrayList<>(rooms.values());
+    }
+
+    // Ids are never reused, including those of deleted rooms
+    synchronized int nextRoomId() {
+        return nextRoomId;
+    }
+
+    synchronized long lastLsn() {
+        return nextLsn - 1;
+    }
+
+    long roomCreated(int roomId, String name, String creator) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        byte[] creatorBytes = creator.getBytes(StandardCharsets.UTF_8);
+        synchronized (this) {
+            ByteBuffer out = begin(ROOM_CREATED, 4 + 4 + nameBytes.length + 4 + creatorBytes.length);
+            out.putInt(roomId);
+            putBytes(out, nameBytes);
+            putBytes(out, creatorBytes);
+            rooms.put(roomId, new RoomRecord(roomId, name, creator));
+            nextRoomId = Math.max(nextRoomId, roomId + 1);
+            return end();
+        }
+    }
+
+    synchronized long roomDeleted(int roomId) {
+        ByteBuffer out = begin(ROOM_DELETED, 4);
+        out.putInt(roomId);
+        rooms.remove(roomId);
+        return end();
+    }
+
+    // True while the writer is too far behind to take chat messages, so callers can
+    // refuse a message before sending it anywhere
+    boolean backlogged() {
+        return backlogged;
+    }
+
+    // The message's sequence number, or -1 when it was not logged because the writer
+    // fell behind
+    long message(int roomId, long millis, String sender, String text) {
+        byte[] senderBytes = sender.getBytes(StandardCharsets.UTF_8);
+        byte[] textBytes = text.getBytes(StandardCharsets.UTF_8);
+        synchronized (this) {
+            if (pending.position() >= MAX_PENDING) {
+                unpersisted.increment();
+                return -1;
+            }
+            ByteBuffer out = begin(MESSAGE, 4 + 8 + 4 + senderBytes.length + 4 + textBytes.length);
+            out.putInt(roomId);
+            out.putLong(millis);
+            putBytes(out, senderBytes);
+            putBytes(out, textBytes);
+            return end();
+        }
+    }
+
+    // Writes the header with placeholders for length and crc, which end() fills in
+    private ByteBuffer begin(byte type, int payloadLength) {
+        int needed = RECORD_HEADER + payloadLength;
+        if (pending.remaining() < needed) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + needed));
+            pending.flip();
+            grown.put(pending);
+            pending = grown;
+        }
+        recordStart = pending.position();
+        pending.putInt(0).putInt(0).put(type).putLong(nextLsn);
+        return pending;
+    }
+
+    private long end() {
+        int start = recordStart;
+        int end = pending.position();
+        int length = end - start - 4;
+        crc.reset();
+        crc.update(pending.array(), start + 8, end - start - 8);
+        pending.putInt(start, length);
+        pending.putInt(start + 4, (int) crc.getValue());
+        pendingRecords++;
+        records.increment();
+        if (end >= MAX_PENDING) {
+            backlogged = true;
+        }
+        if (start == 0) {
+            // First record of a batch, wakes the writer
+            notifyAll();
+        }
+        return nextLsn++;
+    }
+
+    private static void putBytes(ByteBuffer out, byte[] bytes) {
+        out.putInt(bytes.length);
+        out.put(bytes);
+    }
+
+    private void writeLoop() {
+        long lastCommit = 0;
+        while (true) {
+            synchronized (this) {
+                while (pending.position() == 0 && !closing) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (pending.position() == 0) {
+                    return;
+                }
+            }
+            // Let the batch fill for the rest of the interval
+            long wait = lastCommit + flushNanos - System.nanoTime();
+            if (wait > 0 && !closing) {
+                LockSupport.parkNanos(wait);
+            }
+
+            Snapshot snapshot = null;
+            long lastLsn;
+            int batchRecords;
+            synchronized (this) {
+                ByteBuffer filled = pending;
+                pending = writing;
+                writing = filled;
+                pending.clear();
+                batchRecords = pendingRecords;
+                pendingRecords = 0;
+                lastLsn = nextLsn - 1;
+                // The rooms as of exactly this batch, if it fills the segment
+                if (activeSize + writing.position() >= segmentBytes) {
+                    snapshot = new Snapshot(lastLsn, nextRoomId, new ArrayList<>(rooms.values()));
+                }
+                backlogged = false;
+            }
+
+            long start = System.nanoTime();
+            try {
+                writing.flip();
+                int bytes = writing.remaining();
+                while (writing.hasRemaining()) {
+                    active.write(writing);
+                }
+                active.force(false);
+                activeSize += bytes;
+                bytesWritten.add(bytes);
+                commitRecords.record(batchRecords);
+                commitTime.recordSince(start);
+                if (snapshot != null) {
+                    roll(snapshot);
+                }
+            } catch (IOException e) {
+                ChatLog.error("Event log write failed, " + batchRecords + " records lost", e);
+            }
+            writing.clear();
+            lastCommit = start;
+        }
+    }
+
+    // Starts the next segment and records the rooms up to the end of the previous one
+    private void roll(Snapshot snapshot) throws IOException {
+        active.close();
+        long firstLsn = snapshot.lsn + 1;
+        active = FileChannel.open(segmentPath(firstLsn), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        activeSize = 0;
+        synchronized (segments) {
+            segments.addLast(firstLsn);
+        }
+        writeSnapshot(snapshot);
+        deleteCovered();
+    }
+
+    // Written beside the final name and moved over it, so a crash leaves the old one
+    private void writeSnapshot(Snapshot snapshot) throws IOException {
+        Path target = dir.resolve(SNAPSHOT_PREFIX + String.format("%020d", snapshot.lsn));
+        Path temporary = dir.resolve(target.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            CheckedOutputStream checked = new CheckedOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024), new CRC32C());
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeLong(snapshot.lsn);
+            out.writeInt(snapshot.nextRoomId);
+            out.writeInt(snapshot.rooms.size());
+            for (RoomRecord room : snapshot.rooms) {
+                out.writeInt(room.id);
+                writeString(out, room.name);
+                writeString(out, room.creator);
+            }
+            out.writeInt((int) checked.getChecksum().getValue());
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        long previous = snapshotLsn;
+        snapshotLsn = snapshot.lsn;
+        if (previous > 0) {
+            Files.deleteIfExists(dir.resolve(SNAPSHOT_PREFIX + String.format("%020d", previous)));
+        }
+    }
+
+    // Oldest segments go once the snapshot covers them and more than the retained
+    // number are on disk
+    private void deleteCovered() throws IOException {
+        while (segments.size() > retainSegments) {
+            Iterator<Long> oldest = segments.iterator();
+            long first = oldest.next();
+            if (oldest.next() > snapshotLsn + 1) {
+                return;
+            }
+            Files.deleteIfExists(segmentPath(first));
+            synchronized (segments) {
+                segments.removeFirst();
+            }
+        }
+    }
+
+    private Path segmentPath(long firstLsn) {
+        return dir.resolve(String.format("%020d", firstLsn) + SEGMENT_SUFFIX);
+    }
+
+    // Newest readable snapshot, then every record after it
+    private void recover() throws IOException {
+        long start = System.nanoTime();
+        Files.createDirectories(dir);
+        List<Long> firstLsns = new ArrayList<>();
+        List<Long> snapshots = new ArrayList<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            files.map(path -> path.getFileName().toString()).forEach(name -> {
+                if (name.endsWith(SEGMENT_SUFFIX)) {
+                    firstLsns.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+                } else if (name.startsWith(SNAPSHOT_PREFIX) && !name.endsWith(".tmp")) {
+                    snapshots.add(Long.parseLong(name.substring(SNAPSHOT_PREFIX.length())));
+                }
+            });
+        }
+        Collections.sort(firstLsns);
+        snapshots.sort(Collections.reverseOrder());
+        for (long lsn : snapshots) {
+            if (readSnapshot(lsn)) {
+                snapshotLsn = lsn;
+                break;
+            }
+        }
+        nextLsn = snapshotLsn + 1;
+
+        long replayed = 0;
+        for (int i = 0; i < firstLsns.size(); i++) {
+            long firstLsn = firstLsns.get(i);
+            boolean last = i == firstLsns.size() - 1;
+            if (!last && firstLsns.get(i + 1) <= snapshotLsn + 1) {
+                // Entirely covered by the snapshot, kept for history
+                segments.addLast(firstLsn);
+                continue;
+            }
+            Path path = segmentPath(firstLsn);
+            long[] result = replay(path, snapshotLsn + 1);
+            long validLength = result[0];
+            replayed += result[1];
+            segments.addLast(firstLsn);
+            if (validLength < Files.size(path)) {
+                ChatLog.warn("Event log " + path.getFileName() + " ends in a damaged record at byte "
+                        + validLength + ", truncating");
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                    channel.truncate(validLength);
+                }
+                if (!last) {
+                    // Whatever follows a hole cannot be applied in order
+                    for (long later : firstLsns.subList(i + 1, firstLsns.size())) {
+                        Path laterPath = segmentPath(later);
+                        Files.move(laterPath, laterPath.resolveSibling(laterPath.getFileName() + ".damaged"),
+                                StandardCopyOption.REPLACE_EXISTING);
+                    }
+                    break;
+                }
+            }
+        }
+
+        if (segments.isEmpty()) {
+            segments.addLast(nextLsn);
+        }
+        Path activePath = segmentPath(segments.getLast());
+        active = FileChannel.open(activePath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        activeSize = active.size();
+        active.position(activeSize);
+        ChatLog.info("Event log " + dir + " recovered " + rooms.size() + " rooms, replayed " + replayed
+                + " records after snapshot " + snapshotLsn + " in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+    }
+
+    private boolean readSnapshot(long lsn) {
+        Path path = dir.resolve(SNAPSHOT_PREFIX + String.format("%020d", lsn));
+        try (CheckedInputStream checked = new CheckedInputStream(
+                new BufferedInputStream(Files.newInputStream(path), 64 * 1024), new CRC32C())) {
+            DataInputStream in = new DataInputStream(checked);
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readLong() != lsn) {
+                throw new IOException("not a snapshot");
+            }
+            int roomIdLimit = in.readInt();
+            int count = in.readInt();
+            TreeMap<Integer, RoomRecord> loaded = new TreeMap<>();
+            for (int i = 0; i < count; i++) {
+                int id = in.readInt();
+                String name = readString(in);
+                String creator = readString(in);
+                loaded.put(id, new RoomRecord(id, name, creator));
+            }
+            int expected = (int) checked.getChecksum().getValue();
+            if (in.readInt() != expected) {
+                throw new IOException("checksum mismatch");
+            }
+            rooms.clear();
+            rooms.putAll(loaded);
+            nextRoomId = roomIdLimit;
+            return true;
+        } catch (IOException e) {
+            ChatLog.warn("Skipping unreadable event log snapshot " + path.getFileName() + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    // Applies the records from fromLsn on; returns the length of the valid prefix
+    // and the number of records applied
+    private long[] replay(Path path, long fromLsn) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            int position = 0;
+            long applied = 0;
+            while (size - position >= RECORD_HEADER) {
+                int length = map.getInt(position);
+                if (length < RECORD_HEADER - 4 || position + 4L + length > size) {
+                    break;
+                }
+                crc.reset();
+                crc.update(map.slice(position + 8, length - 4));
+                if ((int) crc.getValue() != map.getInt(position + 4)) {
+                    break;
+                }
+                byte type = map.get(position + 8);
+                long lsn = map.getLong(position + 9);
+                if (lsn >= fromLsn) {
+                    apply(type, map.slice(position + RECORD_HEADER, length + 4 - RECORD_HEADER));
+                    applied++;
+                }
+                nextLsn = Math.max(nextLsn, lsn + 1);
+                position += 4 + length;
+            }
+            return new long[] { position, applied };
+        }
+    }
+
+    // Puts up to limit of the room's newest messages before beforeLsn in front of page,
+    // oldest first, scanning the segments from the newest back. Returns false once the
+    // log holds nothing older than what was added. Only sees what the writer has
+    // written, messages of the current flush interval are not on disk yet.
+    boolean history(int roomId, long beforeLsn, int limit, List<MessageRecord> page) throws IOException {
+        Long[] firstLsns;
+        synchronized (segments) {
+            firstLsns = segments.toArray(new Long[0]);
+        }
+        ArrayDeque<MessageRecord> found = new ArrayDeque<>();
+        for (int i = firstLsns.length - 1; i >= 0 && found.size() < limit; i--) {
+            if (firstLsns[i] >= beforeLsn) {
+                continue;
+            }
+            ArrayDeque<MessageRecord> older = readMessages(segmentPath(firstLsns[i]), roomId, beforeLsn,
+                    limit - found.size());
+            while (!older.isEmpty()) {
+                found.addFirst(older.pollLast());
+            }
+        }
+        page.addAll(0, found);
+        return found.size() == limit;
+    }
+
+    // The newest max messages of the room before beforeLsn in one segment, oldest first.
+    // The segment may be the one being appended to or about to be deleted: a record cut
+    // off at the end of the mapping ends the scan, a deleted file has no messages. The
+    // checksums were verified by recovery or are of our own writes and are not checked.
+    private ArrayDeque<MessageRecord> readMessages(Path path, int roomId, long beforeLsn, int max) throws IOException {
+        ArrayDeque<MessageRecord> found = new ArrayDeque<>();
+        MappedByteBuffer map;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (NoSuchFileException e) {
+            return found;
+        }
+        int size = map.limit();
+        int position = 0;
+        while (size - position >= RECORD_HEADER) {
+            int length = map.getInt(position);
+            if (length < RECORD_HEADER - 4 || position + 4L + length > size) {
+                break;
+            }
+            long lsn = map.getLong(position + 9);
+            if (lsn >= beforeLsn) {
+                break;
+            }
+            if (map.get(position + 8) == MESSAGE && map.getInt(position + RECORD_HEADER) == roomId) {
+                ByteBuffer payload = map.slice(position + RECORD_HEADER + 4, length + 4 - RECORD_HEADER - 4);
+                long millis = payload.getLong();
+                String sender = getString(payload);
+                found.addLast(new MessageRecord(lsn, millis, sender, getString(payload)));
+                if (found.size() > max) {
+                    found.removeFirst();
+                }
+            }
+            position += 4 + length;
+        }
+        return found;
+    }
+
+    // Messages carry no room state, their payload is not even decoded here
+    private void apply(byte type, ByteBuffer payload) {
+        if (type == ROOM_CREATED) {
+            int id = payload.getInt();
+            String name = getString(payload);
+            String creator = getString(payload);
+            rooms.put(id, new RoomRecord(id, name, creator));
+            nextRoomId = Math.max(nextRoomId, id + 1);
+        } else if (type == ROOM_DELETED) {
+            rooms.remove(payload.getInt());
+        }
+    }
+
+    // Length-prefixed UTF-8 like the log records, any length a name may have
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    // A corrupt length reads to the end of the file rather than allocating it up front
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        byte[] bytes = length < 0 ? null : in.readNBytes(length);
+        if (bytes == null || bytes.length != length) {
+            throw new EOFException("truncated string");
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static String getString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Commits what is pending and stops the writer
+    public void close() {
+        synchronized (this) {
+            if (closing) {
+                return;
+            }
+            closing = true;
+            notifyAll();
+        }
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+            active.close();
+        } catch (InterruptedException | IOException e) {
+        }
+    }
+
+    static final class RoomRecord {
+        final int id;
+        final String name;
+        final String creator;
+
+        RoomRecord(int id, String name, String creator) {
+            this.id = id;
+            this.name = name;
+            this.creator = creator;
+        }
+    }
+
+    // A chat line as logged; its lsn is the seq clients page history by
+    static final class MessageRecord {
+        final long lsn;
+        final long millis;
+        final String sender;
+        final String text;
+
+        MessageRecord(long lsn, long millis, String sender, String text) {
+            this.lsn = lsn;
+            this.millis = millis;
+            this.sender = sender;
+            this.text = text;
+        }
+    }
+
+    private static final class Snapshot {
+        final long lsn;
+        final int nextRoomId;
+        final List<RoomRecord> rooms;
+
+        Snapshot(long lsn, int nextRoomId, List<RoomRecord> rooms) {
+            this.lsn = lsn;
+            this.nextRoomId = nextRoomId;
+            this.rooms = rooms;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package chatroom;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+
+// Consistent hashing of room ids onto cluster nodes. Each node puts a number of
+// virtual points on a 64 bit ring and a room belongs to the first point at or after
+// the hash of its id, so adding or removing a node only moves the rooms next to its
+// points. Every node builds the same ring from the same node names.
+final class HashRing {
+    private final TreeMap<Long, String> points = new TreeMap<>();
+
+    HashRing(Collection<String> nodes, int pointsPerNode) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("A ring needs at least one node");
+        }
+        for (String node : nodes) {
+            for (int i = 0; i < pointsPerNode; i++) {
+                points.put(hash(node + "#" + i), node);
+            }
+        }
+    }
+
+    String owner(int roomId) {
+        return owner(mix(roomId));
+    }
+
+    // Owner of an arbitrary 64 bit hash
+    String owner(long hash) {
+        Map.Entry<Long, String> point = points.ceilingEntry(hash);
+        return (point != null ? point : points.firstEntry()).getValue();
+    }
+
+    // Owner of the hash among the eligible nodes only: the first of their points at or
+    // after it. Null when no node is eligible.
+    String owner(long hash, Predicate<String> eligible) {
+        for (String node : points.tailMap(hash, true).values()) {
+            if (eligible.test(node)) {
+                return node;
+            }
+        }
+        for (String node : points.headMap(hash, false).values()) {
+            if (eligible.test(node)) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    // FNV-1a over the characters, mixed so nearby names spread over the ring
+    private static long hash(String text) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < text.length(); i++) {
+            hash ^= text.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return mix(hash);
+    }
+
+    // MurmurHash3's 64 bit finalizer, consecutive ids land far apart
+    static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+}
@@ -0,0 +1,158 @@
+package chatroom;
+
+import java.util.*;
+
+// The newest messages of the rooms chatted in lately, so the history page a client asks
+// for on joining is answered from memory. Each room keeps its last tailSize messages;
+// whole rooms are dropped least recently used first while the cache is over maxBytes.
+// A tail is complete while it still holds every message the room ever had, otherwise
+// what lies before it is read from the event log.
+//   -Dchat.history.tailSize=200 -Dchat.history.cacheBytes=33554432
+final class HistoryCache {
+    // Object headers, fields and deque slot of a cached message, beyond its characters
+    private static final int MESSAGE_OVERHEAD = 96;
+
+    private final int tailSize;
+    private final long maxBytes;
+    // Guarded by this, least recently used first
+    private final LinkedHashMap<Integer, Tail> tails = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+
+    HistoryCache(int tailSize, long maxBytes) {
+        this.tailSize = Math.max(1, tailSize);
+        this.maxBytes = maxBytes;
+    }
+
+    static HistoryCache fromProperties() {
+        return new HistoryCache(Integer.getInteger("chat.history.tailSize", 200),
+                Long.getLong("chat.history.cacheBytes", 32L * 1024 * 1024));
+    }
+
+    // A new room has no history, its empty tail is complete
+    synchronized void roomCreated(int roomId) {
+        tails.put(roomId, new Tail(true));
+    }
+
+    synchronized void roomDeleted(int roomId) {
+        Tail tail = tails.remove(roomId);
+        if (tail != null) {
+            bytes -= tail.bytes;
+        }
+    }
+
+    // A message just sent to the room; a room not cached starts an incomplete tail
+    synchronized void add(int roomId, EventLog.MessageRecord message) {
+        Tail tail = tails.get(roomId);
+        if (tail == null) {
+            tail = new Tail(false);
+            tails.put(roomId, tail);
+        }
+        bytes += tail.add(message, tailSize);
+        evict(roomId);
+    }
+
+    // Copies up to limit of the room's messages before beforeSeq to page, oldest first.
+    // Returns true when that is the whole answer, false when older messages may only
+    // be in the event log.
+    synchronized boolean read(int roomId, long beforeSeq, int limit, List<EventLog.MessageRecord> page) {
+        Tail tail = tails.get(roomId);
+        if (tail == null) {
+            return false;
+        }
+        int start = page.size();
+        Iterator<EventLog.MessageRecord> newest = tail.messages.descendingIterator();
+        while (newest.hasNext() && page.size() - start < limit) {
+            EventLog.MessageRecord message = newest.next();
+            if (message.lsn < beforeSeq) {
+                page.add(message);
+            }
+        }
+        Collections.reverse(page.subList(start, page.size()));
+        return page.size() - start == limit || tail.complete;
+    }
+
+    // Messages read from the event log before olderThan, oldest first, go in front of
+    // the room's tail if they directly precede it and there is space; complete says the
+    // log had nothing older. A room not cached takes them only as its newest messages.
+    synchronized void prepend(int roomId, long olderThan, List<EventLog.MessageRecord> older, boolean complete) {
+        Tail tail = tails.get(roomId);
+        if (tail == null) {
+            if (olderThan != Long.MAX_VALUE) {
+                return;
+            }
+            tail = new Tail(false);
+            tails.put(roomId, tail);
+        }
+        EventLog.MessageRecord first = tail.messages.peekFirst();
+        if (first != null ? first.lsn != olderThan : olderThan != Long.MAX_VALUE) {
+            return;
+        }
+        bytes += tail.prepend(older, complete, tailSize);
+        evict(roomId);
+    }
+
+    synchronized long bytes() {
+        return bytes;
+    }
+
+    // The room just touched stays, even alone over the cap
+    private void evict(int keep) {
+        Iterator<Map.Entry<Integer, Tail>> eldest = tails.entrySet().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            Map.Entry<Integer, Tail> entry = eldest.next();
+            if (entry.getKey() != keep) {
+                bytes -= entry.getValue().bytes;
+                eldest.remove();
+            }
+        }
+    }
+
+    private static long size(EventLog.MessageRecord message) {
+        return MESSAGE_OVERHEAD + 2L * (message.sender.length() + message.text.length());
+    }
+
+    // One room's newest messages in seq order
+    private static final class Tail {
+        final ArrayDeque<EventLog.MessageRecord> messages = new ArrayDeque<>();
+        boolean complete;
+        long bytes;
+
+        Tail(boolean complete) {
+            this.complete = complete;
+        }
+
+        // Senders take their seq and add here in two steps, so a message can arrive
+        // after a newer one. Returns the change in bytes.
+        long add(EventLog.MessageRecord message, int capacity) {
+            long before = bytes;
+            EventLog.MessageRecord last = messages.peekLast();
+            if (last == null || last.lsn < message.lsn) {
+                messages.addLast(message);
+            } else {
+                ArrayDeque<EventLog.MessageRecord> newer = new ArrayDeque<>();
+                while (!messages.isEmpty() && messages.peekLast().lsn > message.lsn) {
+                    newer.addFirst(messages.pollLast());
+                }
+                messages.addLast(message);
+                messages.addAll(newer);
+            }
+            bytes += size(message);
+            while (messages.size() > capacity) {
+                bytes -= size(messages.removeFirst());
+                complete = false;
+            }
+            return bytes - before;
+        }
+
+        long prepend(List<EventLog.MessageRecord> older, boolean olderComplete, int capacity) {
+            long before = bytes;
+            int fits = Math.min(older.size(), capacity - messages.size());
+            for (int i = older.size() - 1; i >= older.size() - fits; i--) {
+                messages.addFirst(older.get(i));
+                bytes += size(older.get(i));
+            }
+            complete = olderComplete && fits == older.size();
+            return bytes - before;
+        }
+    }
+}
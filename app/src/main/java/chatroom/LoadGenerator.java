@@ -0,0 +1,400 @@
+package chatroom;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Headless load run: simulated users speak the text protocol through ChatConnection,
+// the same code the Swing client uses, creating, joining and leaving rooms and chatting
+// in them. Reports throughput and latency percentiles per operation.
+//   java -Xss512k -cp app/target/classes chatroom.LoadGenerator [users] [seconds] [host]
+// Without a host an in-process server is started, its mode set by -Dchat.server.mode.
+//   -Dchat.load.thinkMillis=200     mean pause between a user's operations
+//   -Dchat.load.roomSize=20         users per room the generator aims for
+//   -Dchat.load.warmupSeconds=5     run before measuring
+//   -Dchat.load.timeoutMillis=5000  an unanswered operation counts as a timeout
+//   -Dchat.load.senders=4           threads sending commands; a send blocks while the
+//                                   server is not reading that connection
+// CreateRoom is timed to its reply and SendMessage to the echo of our own line.
+// JoinRoom and LeaveRoom have no reply, so a GetRooms follows them and they are timed
+// to its reply. An operation the server answers with RateLimited counts as limited.
+public class LoadGenerator {
+    private static final int PORT = 12345;
+    private static final int THINK_MILLIS = Integer.getInteger("chat.load.thinkMillis", 200);
+    private static final int ROOM_SIZE = Integer.getInteger("chat.load.roomSize", 20);
+    private static final int WARMUP_SECONDS = Integer.getInteger("chat.load.warmupSeconds", 5);
+    private static final int TIMEOUT_MILLIS = Integer.getInteger("chat.load.timeoutMillis", 5000);
+    private static final int SENDERS = Integer.getInteger("chat.load.senders", 4);
+
+    private static final int NONE = -1;
+    private static final int CREATE = 0;
+    private static final int JOIN = 1;
+    private static final int LEAVE = 2;
+    private static final int CHAT = 3;
+    private static final String[] OPERATIONS = {"create", "join", "leave", "chat"};
+
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(SENDERS, runnable -> {
+        Thread thread = new Thread(runnable, "load-scheduler");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final OpenRooms openRooms = new OpenRooms();
+    private final AtomicInteger roomNames = new AtomicInteger();
+    // CreateRoom sent and not answered yet, counted against the target
+    private final AtomicInteger creating = new AtomicInteger();
+    private final List<User> users = new ArrayList<>();
+    private final int targetRooms;
+    private volatile boolean measuring;
+    private volatile boolean stopped;
+
+    private LoadGenerator(int userCount) {
+        this.targetRooms = Math.max(1, userCount / Math.max(1, ROOM_SIZE));
+    }
+
+    public static void main(String[] args) throws Exception {
+        int userCount = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+        String host = args.length > 2 ? args[2] : null;
+
+        if (host == null) {
+            host = "127.0.0.1";
+            // Join and leave lines would swamp the console, the file still gets them
+            if (System.getProperty("chat.log.console") == null) {
+                System.setProperty("chat.log.console", "false");
+            }
+            // Rooms of an earlier run would come back and clash with this run's names
+            if (System.getProperty("chat.wal.dir") == null) {
+                System.setProperty("chat.wal.dir", Files.createTempDirectory("chat-load-wal").toString());
+            }
+            Thread server = new Thread(() -> MultiCastServer.main(new String[0]), "server");
+            server.setDaemon(true);
+            server.start();
+            waitForServer(host);
+        }
+
+        LoadGenerator generator = new LoadGenerator(userCount);
+        long connectStart = System.nanoTime();
+        for (int i = 0; i < userCount; i++) {
+            generator.connect(host, "user" + i);
+        }
+        System.out.printf("%d users connected in %d ms%n", userCount, (System.nanoTime() - connectStart) / 1_000_000);
+
+        generator.start();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(WARMUP_SECONDS));
+        generator.measuring = true;
+        long start = System.nanoTime();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+        generator.measuring = false;
+        long elapsed = System.nanoTime() - start;
+        generator.stopped = true;
+
+        generator.report(elapsed);
+        for (User user : generator.users) {
+            user.connection.close();
+        }
+        System.exit(0);
+    }
+
+    private void connect(String host, String name) throws IOException {
+        User user = new User(name);
+        user.connection = new ChatConnection(host, PORT, user);
+        user.connection.start("load-" + name);
+        users.add(user);
+    }
+
+    // Spreads the first operations over one think time, then watches for lost replies
+    private void start() {
+        Random random = new Random(42);
+        for (User user : users) {
+            scheduler.schedule(user::next, random.nextInt(Math.max(1, THINK_MILLIS)), TimeUnit.MILLISECONDS);
+        }
+        scheduler.scheduleWithFixedDelay(this::expire, 100, 100, TimeUnit.MILLISECONDS);
+    }
+
+    private void expire() {
+        long deadline = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+        for (User user : users) {
+            int operation = user.pending.get();
+            if (operation != NONE && user.startNanos - deadline < 0) {
+                user.timedOut(operation);
+            }
+        }
+    }
+
+    private void report(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        long total = 0;
+        System.out.printf("%-7s %10s %10s %9s %9s %9s %9s %9s %9s%n",
+                "op", "count", "ops/s", "p50 us", "p99 us", "p999 us", "max us", "timeouts", "limited");
+        for (int operation = 0; operation < OPERATIONS.length; operation++) {
+            Samples merged = new Samples();
+            long timeouts = 0;
+            long limited = 0;
+            for (User user : users) {
+                synchronized (user) {
+                    merged.addAll(user.samples[operation]);
+                    timeouts += user.timeouts[operation];
+                    limited += user.limited[operation];
+                }
+            }
+            long[] sorted = merged.sorted();
+            total += sorted.length;
+            if (sorted.length == 0) {
+                System.out.printf("%-7s %10d %10s %9s %9s %9s %9s %9d %9d%n", OPERATIONS[operation], 0, "-", "-", "-", "-", "-",
+                        timeouts, limited);
+                continue;
+            }
+            System.out.printf("%-7s %10d %10.0f %9d %9d %9d %9d %9d %9d%n", OPERATIONS[operation], sorted.length,
+                    sorted.length / seconds, percentile(sorted, 0.50) / 1000, percentile(sorted, 0.99) / 1000,
+                    percentile(sorted, 0.999) / 1000, sorted[sorted.length - 1] / 1000, timeouts, limited);
+        }
+        System.out.printf("users=%d rooms=%d seconds=%.1f throughput=%.0f ops/s%n",
+                users.size(), openRooms.size(), seconds, total / seconds);
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))];
+    }
+
+    private static void waitForServer(String host) throws InterruptedException {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            try {
+                new Socket(host, PORT).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        throw new IllegalStateException("Server did not start on port " + PORT);
+    }
+
+    // One simulated user with at most one operation in flight. Operations start on the
+    // scheduler and complete on the connection's reader thread.
+    private class User implements ChatConnection.Listener {
+        final String name;
+        ChatConnection connection;
+        // Operation in flight, cleared by whoever completes or expires it first
+        final AtomicInteger pending = new AtomicInteger(NONE);
+        volatile long startNanos;
+        volatile String expectedEcho;
+        // Room we are in, only changed by the thread owning the pending operation
+        volatile ChatConnection.Room room;
+        private int sent;
+        // Guarded by this user
+        final Samples[] samples = new Samples[OPERATIONS.length];
+        final long[] timeouts = new long[OPERATIONS.length];
+        final long[] limited = new long[OPERATIONS.length];
+
+        User(String name) {
+            this.name = name;
+            for (int i = 0; i < samples.length; i++) {
+                samples[i] = new Samples();
+            }
+        }
+
+        // Outside a room: create one while there are fewer than wanted, and now and then
+        // anyway so rooms keep coming and going; else join one.
+        // In a room: mostly chat, sometimes leave.
+        void next() {
+            if (stopped) {
+                return;
+            }
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            ChatConnection.Room current = room;
+            if (current == null) {
+                ChatConnection.Room target;
+                if (openRooms.size() + creating.get() < targetRooms || random.nextInt(ROOM_SIZE) == 0) {
+                    creating.incrementAndGet();
+                    begin(CREATE);
+                    connection.createRoom("load-" + roomNames.incrementAndGet()).whenComplete(this::created);
+                } else if ((target = openRooms.random(random)) != null) {
+                    room = target;
+                    begin(JOIN);
+                    connection.joinRoom(target, name);
+                    connection.getRooms().whenComplete((version, error) -> answered(JOIN, error));
+                } else {
+                    // Every wanted room is still being created
+                    scheduleNext();
+                }
+            } else if (random.nextInt(10) == 0) {
+                room = null;
+                begin(LEAVE);
+                connection.leaveRoom(current, name);
+                connection.getRooms().whenComplete((version, error) -> answered(LEAVE, error));
+            } else {
+                String text = name + " " + sent++;
+                expectedEcho = ": " + text;
+                begin(CHAT);
+                connection.sendMessage(current, text);
+            }
+        }
+
+        private void begin(int operation) {
+            startNanos = System.nanoTime();
+            pending.set(operation);
+        }
+
+        private void complete(int operation) {
+            long latency = System.nanoTime() - startNanos;
+            if (!pending.compareAndSet(operation, NONE)) {
+                return;
+            }
+            if (operation == CREATE) {
+                creating.decrementAndGet();
+            }
+            if (measuring) {
+                synchronized (this) {
+                    samples[operation].add(latency);
+                }
+            }
+            scheduleNext();
+        }
+
+        // The room may have gone between picking and joining it, start over outside
+        void timedOut(int operation) {
+            if (fail(operation, timeouts)) {
+                room = null;
+                scheduleNext();
+            }
+        }
+
+        // Any other failure means the connection is gone, which the timeout counts
+        private void answered(int operation, Throwable error) {
+            if (error == null) {
+                complete(operation);
+            } else if (error instanceof ChatConnection.RateLimitedException) {
+                limited(operation);
+            }
+        }
+
+        // JoinRoom and SendMessage have no reply of their own to fail
+        public void rateLimited(String command) {
+            if (command.equals("JoinRoom")) {
+                limited(JOIN);
+            } else if (command.equals("SendMessage")) {
+                limited(CHAT);
+            }
+        }
+
+        // A refused join leaves us outside, a refused chat line still in the room
+        private void limited(int operation) {
+            if (fail(operation, limited)) {
+                if (operation == JOIN) {
+                    room = null;
+                }
+                scheduleNext();
+            }
+        }
+
+        private boolean fail(int operation, long[] counts) {
+            if (!pending.compareAndSet(operation, NONE)) {
+                return false;
+            }
+            if (operation == CREATE) {
+                creating.decrementAndGet();
+            }
+            if (measuring) {
+                synchronized (this) {
+                    counts[operation]++;
+                }
+            }
+            return true;
+        }
+
+        private void scheduleNext() {
+            if (stopped) {
+                return;
+            }
+            long pause = (long) (THINK_MILLIS * (0.5 + ThreadLocalRandom.current().nextDouble()));
+            scheduler.schedule(this::next, pause, TimeUnit.MILLISECONDS);
+        }
+
+        private void created(ChatConnection.Room created, Throwable error) {
+            if (error != null) {
+                answered(CREATE, error);
+                return;
+            }
+            room = created;
+            openRooms.add(created);
+            complete(CREATE);
+        }
+
+        public void roomDeleted(int roomId) {
+            openRooms.remove(roomId);
+        }
+
+        public void message(int roomId, String text) {
+            ChatConnection.Room current = room;
+            String echo = expectedEcho;
+            if (current != null && current.getId() == roomId && echo != null && text.endsWith(echo)) {
+                complete(CHAT);
+            }
+        }
+
+        public void disconnected(IOException error) {
+            if (!stopped) {
+                System.err.println(name + " disconnected" + (error != null ? ": " + error : ""));
+            }
+        }
+    }
+
+    // Rooms users can join, picked at random in O(1)
+    private static class OpenRooms {
+        private final List<ChatConnection.Room> rooms = new ArrayList<>();
+        private final Map<Integer, Integer> indexes = new HashMap<>();
+
+        synchronized void add(ChatConnection.Room room) {
+            indexes.put(room.getId(), rooms.size());
+            rooms.add(room);
+        }
+
+        // Every user hears RoomDeleted, only the first call finds the room
+        synchronized void remove(int roomId) {
+            Integer index = indexes.remove(roomId);
+            if (index == null) {
+                return;
+            }
+            ChatConnection.Room last = rooms.remove(rooms.size() - 1);
+            if (index < rooms.size()) {
+                rooms.set(index, last);
+                indexes.put(last.getId(), index);
+            }
+        }
+
+        synchronized ChatConnection.Room random(Random random) {
+            return rooms.isEmpty() ? null : rooms.get(random.nextInt(rooms.size()));
+        }
+
+        synchronized int size() {
+            return rooms.size();
+        }
+    }
+
+    // Growable array of latencies in nanoseconds
+    private static class Samples {
+        private long[] values = new long[64];
+        private int size;
+
+        void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        void addAll(Samples other) {
+            for (int i = 0; i < other.size; i++) {
+                add(other.values[i]);
+            }
+        }
+
+        long[] sorted() {
+            long[] sorted = Arrays.copyOf(values, size);
+            Arrays.sort(sorted);
+            return sorted;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package chatroom;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// In-process stand-in for TcpClusterBus, for running several nodes in one JVM. Each
+// node receives on a thread of its own, so frames from one sender keep their order
+// as they do over TCP. Frames are passed as they are, without copying.
+final class LocalClusterBus implements ClusterBus {
+    // The nodes that can reach each other
+    static final class Network {
+        private final List<String> names;
+        private final Map<String, LocalClusterBus> started = new ConcurrentHashMap<>();
+
+        Network(String... names) {
+            this.names = Arrays.asList(names.clone());
+        }
+
+        LocalClusterBus bus(String name) {
+            if (!names.contains(name)) {
+                throw new IllegalArgumentException("No node " + name + " in " + names);
+            }
+            return new LocalClusterBus(this, name);
+        }
+    }
+
+    private final Network network;
+    private final String self;
+    private final ExecutorService inbox;
+    private volatile Receiver receiver;
+
+    private LocalClusterBus(Network network, String self) {
+        this.network = network;
+        this.self = self;
+        this.inbox = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "cluster-" + self);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public String self() {
+        return self;
+    }
+
+    public List<String> nodes() {
+        return network.names;
+    }
+
+    public void start(Receiver receiver) {
+        this.receiver = receiver;
+        for (LocalClusterBus other : new ArrayList<>(network.started.values())) {
+            other.inbox.execute(() -> other.receiver.connected(self));
+            inbox.execute(() -> receiver.connected(other.self));
+        }
+        network.started.put(self, this);
+    }
+
+    public void send(String node, ByteBuffer frame) {
+        LocalClusterBus target = network.started.get(node);
+        if (target == null) {
+            return;
+        }
+        ByteBuffer body = frame.duplicate();
+        try {
+            BinaryProtocol.readVarInt(body);
+        } catch (WireProtocol.ProtocolException e) {
+            throw new IllegalArgumentException(e);
+        }
+        target.inbox.execute(() -> target.receiver.received(self, body));
+    }
+
+    public boolean reachable(String node) {
+        return network.started.containsKey(node);
+    }
+
+    public void close() {
+        if (network.started.remove(self, this)) {
+            for (LocalClusterBus other : network.started.values()) {
+                other.inbox.execute(() -> other.receiver.disconnected(self));
+            }
+        }
+        inbox.shutdown();
+    }
+}
@@ -0,0 +1,76 @@
+package chatroom;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+
+// Cost of a log call on the command path while several handler threads flood
+// join/leave lines: the old System.out.println with a new SimpleDateFormat per call
+// against ChatLog. Both write to a discarding console, ChatLog also to a temp file.
+//   java -cp app/target/classes chatroom.LogBenchmark [threads] [calls per thread]
+public class LogBenchmark {
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int calls = args.length > 1 ? Integer.parseInt(args[1]) : 200_000;
+
+        File logFile = File.createTempFile("chat-log-bench", ".log");
+        logFile.deleteOnExit();
+        // Must be set before ChatLog is first used
+        System.setProperty("chat.log.console", "false");
+        System.setProperty("chat.log.file", logFile.getPath());
+        PrintStream console = new PrintStream(OutputStream.nullOutputStream(), true);
+
+        for (int round = 0; round < 2; round++) {
+            boolean print = round == 1;
+            report("System.out", print, threads, calls, (i, thread) -> console.println(
+                    new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date())
+                            + " - User 'user" + thread + "' joined room 'room" + i % 100 + "'"));
+            report("ChatLog", print, threads, calls,
+                    (i, thread) -> ChatLog.info("User 'user" + thread + "' joined room 'room" + i % 100 + "'"));
+        }
+        System.out.println("ChatLog lines dropped: " + ChatLog.dropped());
+    }
+
+    interface LogCall {
+        void log(int i, int thread);
+    }
+
+    private static void report(String name, boolean print, int threads, int calls, LogCall call) throws InterruptedException {
+        long[][] latencies = new long[threads][calls];
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            workers[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < calls; i++) {
+                    long before = System.nanoTime();
+                    call.log(i, thread);
+                    latencies[thread][i] = System.nanoTime() - before;
+                }
+            });
+            workers[t].start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - begin;
+        if (!print) {
+            return;
+        }
+        long[] all = Arrays.stream(latencies).flatMapToLong(Arrays::stream).sorted().toArray();
+        System.out.printf("%-10s %,10.0f calls/s   p50=%,6d ns p99=%,8d ns p999=%,9d ns%n", name,
+                all.length * 1e9 / elapsed, all[all.length / 2], all[(int) (all.length * 0.99)],
+                all[(int) (all.length * 0.999)]);
+    }
+}
@@ -0,0 +1,291 @@
+package chatroom;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+// Server metrics in the Prometheus text format. Counters are LongAdders and histograms
+// keep one bucket array per stripe, picked by thread, so recording on a hot path is
+// a rarely contended atomic increment. Everything is summed only when scraped.
+//   curl http://127.0.0.1:9100/metrics     -Dchat.metrics.port=0 turns the endpoint off
+final class Metrics {
+    // Series grouped by metric name, in registration order
+    private static final Map<String, List<Metric>> metrics = new LinkedHashMap<>();
+
+    private Metrics() {
+    }
+
+    static synchronized Counter counter(String name, String help, String labels) {
+        return add(new Counter(name, help, labels));
+    }
+
+    // A counter kept elsewhere, read on each scrape
+    static synchronized void counter(String name, String help, LongSupplier value) {
+        add(new Gauge(name, help, "counter", value));
+    }
+
+    // scale converts recorded values to the reported unit, e.g. 1e-9 for nanos to seconds
+    static synchronized Histogram histogram(String name, String help, String labels, double scale) {
+        return add(new Histogram(name, help, labels, scale));
+    }
+
+    static synchronized void gauge(String name, String help, LongSupplier value) {
+        add(new Gauge(name, help, "gauge", value));
+    }
+
+    // A distribution computed on each scrape, such as members per room
+    static synchronized void computed(String name, String help, Supplier<Histogram> snapshot) {
+        add(new Computed(name, help, snapshot));
+    }
+
+    private static <M extends Metric> M add(M metric) {
+        metrics.computeIfAbsent(metric.name, name -> new ArrayList<>()).add(metric);
+        return metric;
+    }
+
+    // Series sharing a name are reported under one HELP and TYPE header
+    static synchronized String scrape() {
+        StringBuilder text = new StringBuilder(4096);
+        for (List<Metric> series : metrics.values()) {
+            Metric first = series.get(0);
+            text.append("# HELP ").append(first.name).append(' ').append(first.help).append('\n');
+            text.append("# TYPE ").append(first.name).append(' ').append(first.type()).append('\n');
+            for (Metric metric : series) {
+                metric.write(text);
+            }
+        }
+        return text.toString();
+    }
+
+    // Serves scrape() on the loopback interface only
+    static void startEndpoint() {
+        int port = Integer.getInteger("chat.metrics.port", 9100);
+        if (port <= 0) {
+            return;
+        }
+        try {
+            HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            server.createContext("/metrics", exchange -> {
+                byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            server.start();
+            ChatLog.info("Metrics on http://127.0.0.1:" + port + "/metrics");
+        } catch (IOException e) {
+            ChatLog.error("Metrics endpoint not started", e);
+        }
+    }
+
+    private abstract static class Metric {
+        final String name;
+        final String help;
+
+        Metric(String name, String help) {
+            this.name = name;
+            this.help = help;
+        }
+
+        abstract String type();
+
+        abstract void write(StringBuilder text);
+    }
+
+    static final class Counter extends Metric {
+        private final String labels;
+        private final LongAdder value = new LongAdder();
+
+        private Counter(String name, String help, String labels) {
+            super(name, help);
+            this.labels = labels;
+        }
+
+        void increment() {
+            value.increment();
+        }
+
+        void add(long amount) {
+            value.add(amount);
+        }
+
+        long sum() {
+            return value.sum();
+        }
+
+        String type() {
+            return "counter";
+        }
+
+        void write(StringBuilder text) {
+            text.append(name);
+            if (!labels.isEmpty()) {
+                text.append('{').append(labels).append('}');
+            }
+            text.append(' ').append(value.sum()).append('\n');
+        }
+    }
+
+    private static final class Gauge extends Metric {
+        private final String type;
+        private final LongSupplier value;
+
+        Gauge(String name, String help, String type, LongSupplier value) {
+            super(name, help);
+            this.type = type;
+            this.value = value;
+        }
+
+        String type() {
+            return type;
+        }
+
+        void write(StringBuilder text) {
+            text.append(name).append(' ').append(value.getAsLong()).append('\n');
+        }
+    }
+
+    private static final class Computed extends Metric {
+        private final Supplier<Histogram> snapshot;
+
+        Computed(String name, String help, Supplier<Histogram> snapshot) {
+            super(name, help);
+            this.snapshot = snapshot;
+        }
+
+        String type() {
+            return "summary";
+        }
+
+        void write(StringBuilder text) {
+            snapshot.get().write(text);
+        }
+    }
+
+    // Log-linear buckets: exact below 8, above that 8 buckets per power of two,
+    // so a quantile is off by at most 12.5%. Values must not be negative.
+    static final class Histogram extends Metric {
+        private static final int SUB_BUCKETS = 8;
+        private static final int BUCKETS = (64 - 2) * SUB_BUCKETS;
+        private static final int SUM = BUCKETS;
+        private static final int MAX = BUCKETS + 1;
+        private static final int STRIPES = Integer.highestOneBit(Math.max(2, Runtime.getRuntime().availableProcessors()) * 2 - 1);
+        private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+        private static final MathContext DIGITS = new MathContext(6);
+
+        private final String labels;
+        private final double scale;
+        private final AtomicLongArray[] stripes = new AtomicLongArray[STRIPES];
+
+        private Histogram(String name, String help, String labels, double scale) {
+            super(name, help);
+            this.labels = labels;
+            this.scale = scale;
+            for (int i = 0; i < STRIPES; i++) {
+                stripes[i] = new AtomicLongArray(BUCKETS + 2);
+            }
+        }
+
+        // For Metrics.computed, filled and written on the scraping thread
+        static Histogram snapshot(String name, String labels, double scale) {
+            return new Histogram(name, "", labels, scale);
+        }
+
+        @SuppressWarnings("deprecation")
+        void record(long value) {
+            AtomicLongArray stripe = stripes[(int) Thread.currentThread().getId() & (STRIPES - 1)];
+            stripe.incrementAndGet(bucket(value));
+            stripe.addAndGet(SUM, value);
+            long max;
+            while (value > (max = stripe.get(MAX)) && !stripe.compareAndSet(MAX, max, value)) {
+            }
+        }
+
+        // Records the time since startNanos
+        void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        String type() {
+            return "summary";
+        }
+
+        void write(StringBuilder text) {
+            long[] counts = new long[BUCKETS];
+            long count = 0;
+            long sum = 0;
+            long max = 0;
+            for (AtomicLongArray stripe : stripes) {
+                for (int i = 0; i < BUCKETS; i++) {
+                    long c = stripe.get(i);
+                    counts[i] += c;
+                    count += c;
+                }
+                sum += stripe.get(SUM);
+                max = Math.max(max, stripe.get(MAX));
+            }
+            String prefix = labels.isEmpty() ? "" : labels + ",";
+            for (double quantile : QUANTILES) {
+                text.append(name).append('{').append(prefix).append("quantile=\"").append(quantile).append("\"} ");
+                appendScaled(text, count == 0 ? 0 : Math.min(valueAt(counts, count, quantile), max)).append('\n');
+            }
+            String suffix = labels.isEmpty() ? " " : "{" + labels + "} ";
+            appendScaled(text.append(name).append("_max").append(suffix), max).append('\n');
+            appendScaled(text.append(name).append("_sum").append(suffix), sum).append('\n');
+            text.append(name).append("_count").append(suffix).append(count).append('\n');
+        }
+
+        // Unscaled values stay integers, scaled ones get up to 6 significant digits
+        private StringBuilder appendScaled(StringBuilder text, long value) {
+            if (scale == 1) {
+                return text.append(value);
+            }
+            return text.append(new BigDecimal(value * scale, DIGITS).stripTrailingZeros().toPlainString());
+        }
+
+        private static long valueAt(long[] counts, long count, double quantile) {
+            long rank = Math.max(1, (long) Math.ceil(quantile * count));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return upperBound(i);
+                }
+            }
+            return upperBound(BUCKETS - 1);
+        }
+
+        static int bucket(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) Math.max(0, value);
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exponent - 3)) & (SUB_BUCKETS - 1);
+            return (exponent - 2) * SUB_BUCKETS + sub;
+        }
+
+        private static long upperBound(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int exponent = bucket / SUB_BUCKETS + 2;
+            long sub = bucket % SUB_BUCKETS;
+            return ((SUB_BUCKETS + sub + 1) << (exponent - 3)) - 1;
+        }
+    }
+}
@@ -0,0 +1,716 @@
+package chatroom;
+
+import java.awt.BorderLayout;
+import java.awt.FlowLayout;
+import java.awt.event.*;
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import javax.swing.*;
+import javax.swing.table.DefaultTableModel;
+import chatroom.ChatConnection.HistoryPage;
+import chatroom.ChatConnection.Room;
+
+public class MultiCastClient {
+    private String userName;
+    private JFrame loginFrame;
+    private JFrame roomFrame;
+    private JFrame chatFrame;
+
+    private ChatConnection connection;
+
+    // Only touched on the EDT, rows of roomTableModel follow the same order
+    private List<Room> rooms = new ArrayList<>();
+
+    private JTable roomTable;
+    private DefaultTableModel roomTableModel;
+
+    private volatile Room currentRoom;
+    // Pooled socket and group of the current room, null when the room has no group
+    private MulticastSocket multicastSocket;
+    private ReliableMulticast multicast;
+    private InetAddress groupAddress;
+    private int groupPort;
+    private final MulticastSockets multicastSockets = new MulticastSockets();
+
+    // Number of chat lines kept; older ones are dropped so memory stays flat
+    private static final int CHAT_HISTORY_CAPACITY = Integer.getInteger("chat.history.capacity", 5000);
+    // Messages asked for per GetHistory page
+    private static final int HISTORY_PAGE = 50;
+
+    private JList<String> chatList;
+    private JScrollPane chatScrollPane;
+    private ChatHistoryModel chatHistory;
+    private JTextField messageField;
+    private final ChatAppender chatAppender = new ChatAppender();
+    // Seq to load the next older page before, 0 while a page is on its way or when
+    // there is none; only touched on the EDT
+    private long historyBefore;
+    // Lines the server relayed between JoinRoom and the first history page, which may
+    // end with the same messages; guarded by itself
+    private final List<String> relayedBeforeHistory = new ArrayList<>();
+    private volatile boolean awaitingFirstPage;
+
+    private Thread serverListenerThread;
+
+    public static void main(String[] args) {
+        new MultiCastClient().showLoginInterface();
+    }
+
+    private void showLoginInterface() {
+        loginFrame = new JFrame("Đăng nhập");
+        JTextField nameField = new JTextField(20);
+        JButton loginButton = new JButton("Đăng nhập");
+        loginFrame.setLayout(new FlowLayout());
+        loginFrame.add(new JLabel("Nhập tên của bạn:"));
+        loginFrame.add(nameField);
+        loginFrame.add(loginButton);
+        loginFrame.setSize(300, 150);
+        loginFrame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        loginFrame.setLocationRelativeTo(null);
+        loginFrame.setVisible(true);
+
+        loginButton.addActionListener(e -> {
+            userName = nameField.getText().trim();
+            if (!userName.isEmpty()) {
+                loginButton.setEnabled(false);
+                connectToServer();
+            } else {
+                JOptionPane.showMessageDialog(loginFrame, "Vui lòng nhập tên của bạn.");
+            }
+        });
+    }
+
+    // Connects off the EDT, so the window keeps painting while the server is slow to
+    // answer, and shows the rooms once connected
+    private void connectToServer() {
+        String serverHost = "192.168.1.8";
+        int serverPort = 12345;
+
+        CompletableFuture.supplyAsync(() -> {
+            try {
+                return new ChatConnection(serverHost, serverPort, new ServerListener());
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }).whenComplete((connected, error) -> SwingUtilities.invokeLater(() -> {
+            if (error != null) {
+                JOptionPane.showMessageDialog(loginFrame, "Không thể kết nối đến server.");
+                System.exit(1);
+            }
+            connection = connected;
+            loginFrame.dispose();
+            startServerListener();
+            showRoomInterface();
+        }));
+    }
+
+    private void startServerListener() {
+        serverListenerThread = connection.start("server-listener");
+    }
+
+    // Server lines, parsed by the connection on its reader thread
+    private class ServerListener implements ChatConnection.Listener {
+        public void roomListed(Room room) {
+            // Update the room table in the Event Dispatch Thread
+            SwingUtilities.invokeLater(() -> addRoom(room));
+        }
+
+        public void newRoom(Room room) {
+            SwingUtilities.invokeLater(() -> addRoom(room));
+        }
+
+        public void roomDeleted(int roomId) {
+            SwingUtilities.invokeLater(() -> removeRoom(roomId));
+        }
+
+        public void roomListReset() {
+            SwingUtilities.invokeLater(() -> {
+                rooms.clear();
+                roomTableModel.setRowCount(0);
+            });
+        }
+
+        public void message(int roomId, String text) {
+            Room room = currentRoom;
+            if (room != null && room.getId() == roomId) {
+                if (awaitingFirstPage) {
+                    synchronized (relayedBeforeHistory) {
+                        relayedBeforeHistory.add(text);
+                    }
+                }
+                chatAppender.append(text);
+            }
+        }
+
+        // Only commands without a reply get here, the others fail their future
+        public void rateLimited(String command) {
+            if (command.equals("SendMessage")) {
+                chatAppender.append("(Tin nhắn chưa được gửi, bạn gửi quá nhanh)");
+            } else {
+                SwingUtilities.invokeLater(() -> showRefused(null));
+            }
+        }
+
+        public void disconnected(IOException error) {
+            if (error != null) {
+                error.printStackTrace();
+            }
+        }
+    }
+
+    private void showRoomInterface() {
+        roomFrame = new JFrame("Danh sách phòng - " + userName); // Updated title
+        roomFrame.setLayout(new BorderLayout());
+
+        roomTableModel = new DefaultTableModel(new Object[]{"ID Phòng", "Tên phòng"}, 0);
+        roomTable = new JTable(roomTableModel);
+        JScrollPane scrollPane = new JScrollPane(roomTable);
+
+        JButton createRoomButton = new JButton("Tạo phòng");
+        JButton joinRoomButton = new JButton("Vào phòng");
+
+        JPanel buttonPanel = new JPanel();
+        buttonPanel.add(createRoomButton);
+        buttonPanel.add(joinRoomButton);
+
+        roomFrame.add(scrollPane, BorderLayout.CENTER);
+        roomFrame.add(buttonPanel, BorderLayout.SOUTH);
+
+        roomFrame.setSize(500, 300);
+        roomFrame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        roomFrame.setLocationRelativeTo(null);
+        roomFrame.setVisible(true);
+
+        loadRoomList();
+
+        createRoomButton.addActionListener(e -> {
+            String roomName = JOptionPane.showInputDialog(roomFrame, "Nhập tên phòng:");
+            if (roomName != null && !roomName.trim().isEmpty()) {
+                createRoom(roomName.trim());
+            }
+        });
+
+        joinRoomButton.addActionListener(e -> {
+            int selectedRow = roomTable.getSelectedRow();
+            if (selectedRow >= 0) {
+                Room room = rooms.get(selectedRow);
+                joinRoom(room);
+                roomFrame.dispose();
+                showChatInterface();
+            } else {
+                JOptionPane.showMessageDialog(roomFrame, "Vui lòng chọn một phòng để vào.");
+            }
+        });
+    }
+
+    // Rooms seen before are kept, the server only sends what changed since roomListVersion.
+    // Nothing waits for the answer: rows are added to the table as they arrive.
+    private void loadRoomList() {
+        roomTableModel.setRowCount(0);
+        for (Room room : rooms) {
+            roomTableModel.addRow(new Object[]{room.getId(), room.getName()});
+        }
+
+        // On failure the list keeps what we had
+        connection.getRooms().whenComplete((version, error) -> {
+            if (error != null) {
+                SwingUtilities.invokeLater(() -> showRefused(error));
+            }
+        });
+    }
+
+    // Runs on the EDT; a lost connection shows up on its own
+    private void showRefused(Throwable error) {
+        if (error == null || error instanceof ChatConnection.RateLimitedException) {
+            JOptionPane.showMessageDialog(null, "Bạn thao tác quá nhanh, vui lòng thử lại sau.");
+        } else if (error instanceof ChatConnection.NodeUnavailableException) {
+            JOptionPane.showMessageDialog(null, "Máy chủ tạm thời không phản hồi, vui lòng thử lại.");
+        }
+    }
+
+    // Called on the EDT; a room can arrive both as NewRoom and in a later delta
+    private void addRoom(Room room) {
+        for (Room existing : rooms) {
+            if (existing.getId() == room.getId()) {
+                return;
+            }
+        }
+        rooms.add(room);
+        roomTableModel.addRow(new Object[]{room.getId(), room.getName()});
+    }
+
+    private void removeRoom(int id) {
+        for (int i = 0; i < rooms.size(); i++) {
+            if (rooms.get(i).getId() == id) {
+                rooms.remove(i);
+                roomTableModel.removeRow(i);
+                return;
+            }
+        }
+    }
+
+    // Joins the room once the server has created it; if several are created before the
+    // first answer, the others only show up in the list
+    private void createRoom(String roomName) {
+        connection.createRoom(roomName).whenComplete((room, error) -> SwingUtilities.invokeLater(() -> {
+            if (error != null) {
+                showRefused(error);
+                return;
+            }
+            addRoom(room);
+            if (currentRoom == null) {
+                joinRoom(room);
+                roomFrame.dispose();
+                showChatInterface();
+            }
+        }));
+    }
+
+    private void joinRoom(Room room) {
+        currentRoom = room;
+
+        // Joining is a group membership change on a socket that stays open between rooms
+        if (room.getGroupAddress() != null) {
+            try {
+                MessageReceiver receiver = multicastSockets.receiverFor(room.getGroupPort());
+                multicastSocket = receiver.socket;
+                multicast = receiver.multicast;
+                groupAddress = room.getGroupAddress();
+                groupPort = room.getGroupPort();
+                InetSocketAddress group = new InetSocketAddress(groupAddress, groupPort);
+                multicastSocket.joinGroup(group, multicastSockets.networkInterface());
+                multicast.join(group, room.getId());
+            } catch (IOException e) {
+                e.printStackTrace();
+                multicastSocket = null;
+                multicast = null;
+            }
+        }
+
+        synchronized (relayedBeforeHistory) {
+            relayedBeforeHistory.clear();
+        }
+        awaitingFirstPage = true;
+        historyBefore = 0;
+        connection.joinRoom(currentRoom, userName);
+        connection.getHistory(room.getId(), 0, HISTORY_PAGE).whenComplete((page, error) -> {
+            if (error != null) {
+                // Nothing to take out of the relayed lines any more
+                awaitingFirstPage = false;
+                synchronized (relayedBeforeHistory) {
+                    relayedBeforeHistory.clear();
+                }
+            } else {
+                historyReceived(page);
+            }
+        });
+
+        // Notify other clients in the room
+        sendSystemMessage("Người dùng " + userName + " đã tham gia phòng.");
+    }
+
+    private void showChatInterface() {
+        chatFrame = new JFrame("Phòng chat - " + currentRoom.getName() + " - " + userName); // Updated title
+        chatFrame.setLayout(new BorderLayout());
+
+        // JList only lays out and paints the visible rows, the fixed row height
+        // keeps it from measuring every line in the history
+        chatHistory = new ChatHistoryModel(CHAT_HISTORY_CAPACITY);
+        chatList = new JList<>(chatHistory);
+        chatList.setPrototypeCellValue("Xy");
+        JScrollPane scrollPane = new JScrollPane(chatList);
+        chatScrollPane = scrollPane;
+        // Scrolling to the top asks for the page before the oldest line shown
+        scrollPane.getVerticalScrollBar().addAdjustmentListener(e -> {
+            JScrollBar bar = scrollPane.getVerticalScrollBar();
+            if (historyBefore > 0 && bar.getValue() == bar.getMinimum() && bar.getMaximum() > bar.getVisibleAmount()) {
+                long before = historyBefore;
+                ChatHistoryModel model = chatHistory;
+                historyBefore = 0;
+                connection.getHistory(currentRoom.getId(), before, HISTORY_PAGE).whenComplete((page, error) -> {
+                    if (error != null) {
+                        // The next scroll to the top asks again
+                        SwingUtilities.invokeLater(() -> {
+                            if (chatHistory == model) {
+                                historyBefore = before;
+                            }
+                        });
+                    } else {
+                        historyReceived(page);
+                    }
+                });
+            }
+        });
+
+        messageField = new JTextField();
+        JButton sendButton = new JButton("Gửi");
+        JButton leaveButton = new JButton("Thoát phòng");
+
+        JPanel inputPanel = new JPanel(new BorderLayout());
+        inputPanel.add(messageField, BorderLayout.CENTER);
+        inputPanel.add(sendButton, BorderLayout.EAST);
+
+        JPanel bottomPanel = new JPanel(new BorderLayout());
+        bottomPanel.add(inputPanel, BorderLayout.CENTER);
+        bottomPanel.add(leaveButton, BorderLayout.SOUTH);
+
+        chatFrame.add(scrollPane, BorderLayout.CENTER);
+        chatFrame.add(bottomPanel, BorderLayout.SOUTH);
+
+        chatFrame.setSize(500, 400);
+        chatFrame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        chatFrame.setLocationRelativeTo(null);
+        chatFrame.setVisible(true);
+
+        sendButton.addActionListener(e -> {
+            sendMessage();
+        });
+
+        messageField.addActionListener(e -> {
+            sendMessage();
+        });
+
+        leaveButton.addActionListener(e -> {
+            leaveRoom();
+        });
+    }
+
+    // Runs on the connection's reader thread
+    private void historyReceived(HistoryPage page) {
+        Room room = currentRoom;
+        if (room == null || room.getId() != page.roomId) {
+            return;
+        }
+        boolean first = awaitingFirstPage;
+        List<String> lines = page.lines;
+        if (first) {
+            awaitingFirstPage = false;
+            synchronized (relayedBeforeHistory) {
+                lines = withoutRelayed(lines, relayedBeforeHistory);
+                relayedBeforeHistory.clear();
+            }
+        }
+        List<String> older = lines;
+        SwingUtilities.invokeLater(() -> historyLoaded(page.roomId, older, page.nextBeforeSeq, first));
+    }
+
+    // Runs on the EDT. The first page goes above whatever arrived since joining and shows
+    // the newest line; older pages keep the lines on screen where they were.
+    private void historyLoaded(int roomId, List<String> lines, long nextBeforeSeq, boolean first) {
+        Room room = currentRoom;
+        if (chatHistory == null || room == null || room.getId() != roomId) {
+            return;
+        }
+        ChatHistoryModel model = chatHistory;
+        int added = model.prependAll(lines);
+        // Once the view is full there is no room for older pages
+        long next = added == lines.size() ? nextBeforeSeq : 0;
+        JScrollBar bar = chatScrollPane.getVerticalScrollBar();
+        int shift = added * chatList.getFixedCellHeight();
+        // Once the list is laid out with the new rows; the scroll bar sits at the top
+        // until then, which must not ask for the next page yet
+        SwingUtilities.invokeLater(() -> {
+            if (chatHistory != model) {
+                return;
+            }
+            if (first) {
+                if (model.getSize() > 0) {
+                    chatList.ensureIndexIsVisible(model.getSize() - 1);
+                }
+            } else {
+                bar.setValue(bar.getValue() + shift);
+            }
+            historyBefore = next;
+        });
+    }
+
+    // The first page can repeat what the server relayed after the join; drops the
+    // longest end of the page that matches the start of the relayed lines
+    private static List<String> withoutRelayed(List<String> page, List<String> relayed) {
+        for (int overlap = Math.min(page.size(), relayed.size()); overlap > 0; overlap--) {
+            if (page.subList(page.size() - overlap, page.size()).equals(relayed.subList(0, overlap))) {
+                return new ArrayList<>(page.subList(0, page.size() - overlap));
+            }
+        }
+        return page;
+    }
+
+    private void sendMessage() {
+        String message = messageField.getText().trim();
+        if (!message.isEmpty()) {
+            // The server prefixes the sender and relays it to every member, including us
+            connection.sendMessage(currentRoom, message);
+            messageField.setText("");
+        }
+    }
+
+    // Goes straight to the room's multicast group, not through the server
+    private void sendSystemMessage(String message) {
+        String fullMessage = "[SYSTEM]: " + message;
+        if (multicast != null) {
+            multicast.send(fullMessage);
+        }
+    }
+
+    private void leaveRoom() {
+        try {
+            // Notify other clients in the room
+            sendSystemMessage("Người dùng " + userName + " đã rời phòng.");
+
+            // Notify server that user is leaving the room
+            connection.leaveRoom(currentRoom, userName);
+
+            // The pooled socket stays open for the next room
+            if (multicastSocket != null) {
+                multicast.leave();
+                multicastSocket.leaveGroup(new InetSocketAddress(groupAddress, groupPort), multicastSockets.networkInterface());
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        multicastSocket = null;
+        multicast = null;
+        currentRoom = null;
+        chatFrame.dispose();
+        showRoomInterface();
+    }
+
+    // One MulticastSocket per network interface and port, opened on first use and kept
+    // for the life of the client together with its receiver and reliability layer;
+    // switching rooms only leaves and joins groups on it.
+    // -Dchat.multicast.interface=<name> picks the interface, by default it is the one
+    // the server connection goes out on.
+    private class MulticastSockets {
+        private final Map<String, MessageReceiver> receivers = new HashMap<>();
+        private NetworkInterface networkInterface;
+        private boolean interfaceResolved;
+
+        synchronized MessageReceiver receiverFor(int port) throws IOException {
+            NetworkInterface netIf = networkInterface();
+            String key = (netIf != null ? netIf.getName() : "*") + ":" + port;
+            MessageReceiver receiver = receivers.get(key);
+            if (receiver == null || receiver.socket.isClosed()) {
+                MulticastSocket socket = new MulticastSocket(null);
+                socket.setReuseAddress(true);
+                socket.bind(new InetSocketAddress(port));
+                if (netIf != null) {
+                    socket.setNetworkInterface(netIf);
+                }
+                receiver = new MessageReceiver(socket);
+                receivers.put(key, receiver);
+
+                Thread thread = new Thread(receiver, "multicast-" + key);
+                thread.setDaemon(true);
+                thread.start();
+            }
+            return receiver;
+        }
+
+        // Null leaves the choice to the operating system
+        synchronized NetworkInterface networkInterface() throws SocketException {
+            if (!interfaceResolved) {
+                String name = System.getProperty("chat.multicast.interface");
+                if (name != null) {
+                    networkInterface = NetworkInterface.getByName(name);
+                } else if (connection != null) {
+                    networkInterface = NetworkInterface.getByInetAddress(connection.localAddress());
+                }
+                interfaceResolved = true;
+            }
+            return networkInterface;
+        }
+    }
+
+    // Receives messages in the chat room. Datagrams go through the reliability layer,
+    // which hands back each message in order. The packet, byte and char buffers belong
+    // to this receiver and are reused for every datagram; text is decoded as UTF-8.
+    // Runs for as long as its pooled socket is open, across rooms.
+    private class MessageReceiver implements Runnable, ReliableMulticast.Listener {
+        private static final String SYSTEM_PREFIX = "[SYSTEM]:";
+
+        private final byte[] buffer = new byte[ReliableMulticast.MAX_DATAGRAM];
+        private final DatagramPacket inPacket = new DatagramPacket(buffer, buffer.length);
+        private final CharBuffer chars = CharBuffer.allocate(ReliableMulticast.MAX_MESSAGE);
+        private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+        final MulticastSocket socket;
+        final ReliableMulticast multicast;
+
+        // The sender's address text, only rebuilt when the sender changes
+        private InetAddress lastSender;
+        private String lastSenderText;
+
+        MessageReceiver(MulticastSocket socket) {
+            this.socket = socket;
+            this.multicast = new ReliableMulticast(socket, this);
+        }
+
+        public void run() {
+            try {
+                while (!socket.isClosed()) {
+                    inPacket.setLength(buffer.length);
+                    socket.receive(inPacket);
+                    // Outside a room the layer drops it, a late datagram of the group we left
+                    multicast.received(inPacket);
+                }
+            } catch (IOException e) {
+                // Socket closed, exit thread
+            }
+            multicast.close();
+        }
+
+        public void deliver(InetAddress sender, ByteBuffer text) {
+            chars.clear();
+            decoder.reset();
+            decoder.decode(text, chars, true);
+            decoder.flush(chars);
+            chars.flip();
+
+            if (startsWith(chars, SYSTEM_PREFIX)) {
+                // System message, do not include IP
+                chatAppender.append(null, chars);
+            } else {
+                chatAppender.append(senderText(sender), chars);
+            }
+        }
+
+        private String senderText(InetAddress sender) {
+            if (!sender.equals(lastSender)) {
+                lastSender = sender;
+                lastSenderText = "[" + sender.getHostAddress() + "] ";
+            }
+            return lastSenderText;
+        }
+
+        private boolean startsWith(CharBuffer text, String prefix) {
+            if (text.remaining() < prefix.length()) {
+                return false;
+            }
+            for (int i = 0; i < prefix.length(); i++) {
+                if (text.get(text.position() + i) != prefix.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    // Collects chat lines from the receiving threads and hands them to the EDT
+    // at most once per frame, so thousands of messages a second don't flood it
+    private class ChatAppender {
+        private static final int FRAME_MILLIS = 16;
+
+        private List<String> pending = new ArrayList<>();
+        private boolean flushScheduled;
+        private final Timer frameTimer = new Timer(FRAME_MILLIS, e -> flush());
+
+        ChatAppender() {
+            frameTimer.setRepeats(false);
+        }
+
+        void append(CharSequence line) {
+            append(null, line);
+        }
+
+        synchronized void append(String prefix, CharSequence line) {
+            pending.add(prefix == null ? line.toString() : prefix + line);
+            if (!flushScheduled) {
+                flushScheduled = true;
+                SwingUtilities.invokeLater(frameTimer::restart);
+            }
+        }
+
+        // Runs on the EDT
+        private void flush() {
+            List<String> lines;
+            synchronized (this) {
+                lines = pending;
+                pending = new ArrayList<>();
+                flushScheduled = false;
+            }
+            if (chatHistory == null) {
+                return;
+            }
+            // Follow new messages only if the user has not scrolled up
+            boolean atBottom = chatList.getLastVisibleIndex() >= chatHistory.getSize() - 1;
+            chatHistory.addAll(lines);
+            if (atBottom && chatHistory.getSize() > 0) {
+                chatList.ensureIndexIsVisible(chatHistory.getSize() - 1);
+            }
+        }
+    }
+
+    // Ring buffer of the last capacity chat lines, only touched on the EDT
+    private static class ChatHistoryModel extends AbstractListModel<String> {
+        private static final long serialVersionUID = 1L;
+
+        private final String[] lines;
+        private int start;
+        private int size;
+
+        ChatHistoryModel(int capacity) {
+            lines = new String[Math.max(1, capacity)];
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        public String getElementAt(int index) {
+            return lines[(start + index) % lines.length];
+        }
+
+        // Older lines go in front, as many as the free space holds, the newest of them
+        // first; returns how many were added
+        int prependAll(List<String> older) {
+            int added = Math.min(older.size(), lines.length - size);
+            for (int i = older.size() - 1; i >= older.size() - added; i--) {
+                start = (start - 1 + lines.length) % lines.length;
+                lines[start] = older.get(i);
+            }
+            size += added;
+            if (added > 0) {
+                fireIntervalAdded(this, 0, added - 1);
+            }
+            return added;
+        }
+
+        // One removed and one added event per batch, however many lines it holds
+        void addAll(List<String> batch) {
+            int dropped = 0;
+            int added = 0;
+            for (String line : batch) {
+                if (size < lines.length) {
+                    lines[(start + size) % lines.length] = line;
+                    size++;
+                } else {
+                    lines[start] = line;
+                    start = (start + 1) % lines.length;
+                    dropped++;
+                }
+                added++;
+            }
+            if (dropped > 0) {
+                fireIntervalRemoved(this, 0, Math.min(dropped, size) - 1);
+            }
+            if (added > 0) {
+                added = Math.min(added, size);
+                fireIntervalAdded(this, size - added, size - 1);
+            }
+        }
+    }
+}
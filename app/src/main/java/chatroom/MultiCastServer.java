@@ -0,0 +1,959 @@
+package chatroom;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+public class MultiCastServer {
+    // The rooms and connections of this server
+    static final Node localNode = new Node(new RoomRegistry(MulticastGroupPool.fromProperties()));
+
+    // Reads room history the cache does not hold from disk, off the handler and event loop threads
+    static final ExecutorService historyReader = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "history-reader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Connection deadlines and periodic checks, one thread for every connection
+    static final TimerWheel timers = new TimerWheel("timer-wheel", TimeUnit.MILLISECONDS.toNanos(100), 1024);
+
+    // A connection that sent nothing for heartbeatSeconds is pinged, one silent for
+    // idleTimeoutSeconds is closed. Any request counts, Pong included. A heartbeat of 0
+    // turns both off, an idle timeout of 0 only pings.
+    //   -Dchat.server.heartbeatSeconds=30 -Dchat.server.idleTimeoutSeconds=90
+    static final long HEARTBEAT_NANOS = TimeUnit.SECONDS.toNanos(Integer.getInteger("chat.server.heartbeatSeconds", 30));
+    static final long IDLE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(Integer.getInteger("chat.server.idleTimeoutSeconds", 90));
+
+    // Token bucket limits per connection, per command and per room, see TokenBucket.Limit
+    // for the properties. A refused command is answered RateLimited <command> and has no
+    // effect; a room over its outbound rate drops the message. "commands" is charged for
+    // every command but LeaveRoom and Pong, the others only for their own command.
+    static final TokenBucket.Limit COMMAND_LIMIT = TokenBucket.Limit.fromProperties("commands", 100, 200);
+    static final TokenBucket.Limit CREATE_ROOM_LIMIT = TokenBucket.Limit.fromProperties("createRoom", 2, 10);
+    static final TokenBucket.Limit GET_ROOMS_LIMIT = TokenBucket.Limit.fromProperties("getRooms", 10, 20);
+    static final TokenBucket.Limit JOIN_ROOM_LIMIT = TokenBucket.Limit.fromProperties("joinRoom", 20, 40);
+    static final TokenBucket.Limit SEND_MESSAGE_LIMIT = TokenBucket.Limit.fromProperties("sendMessage", 20, 40);
+    static final TokenBucket.Limit GET_HISTORY_LIMIT = TokenBucket.Limit.fromProperties("getHistory", 10, 20);
+    // Deliveries, so a message costs one token per recipient: local members plus one per
+    // cluster node it is forwarded to
+    static final TokenBucket.Limit ROOM_DELIVERY_LIMIT = TokenBucket.Limit.fromProperties("roomDeliveries", 100_000, 200_000);
+
+    // Hot path metrics, scraped from Metrics
+    private static final Metrics.Counter connectionsAccepted = Metrics.counter("chat_connections_accepted_total",
+            "Connections accepted", "");
+    private static final Metrics.Counter heartbeatsSent = Metrics.counter("chat_heartbeats_sent_total",
+            "Pings sent to quiet connections", "");
+    private static final Metrics.Counter idleDisconnects = Metrics.counter("chat_idle_disconnects_total",
+            "Connections closed after the idle timeout", "");
+    private static final Metrics.Histogram acceptTime = Metrics.histogram("chat_accept_seconds",
+            "Time from accept until the connection is registered with its handler", "", 1e-9);
+    private static final Metrics.Histogram getRoomsTime = commandTime("GetRooms");
+    private static final Metrics.Histogram createRoomTime = commandTime("CreateRoom");
+    private static final Metrics.Histogram joinRoomTime = commandTime("JoinRoom");
+    private static final Metrics.Histogram leaveRoomTime = commandTime("LeaveRoom");
+    private static final Metrics.Histogram sendMessageTime = commandTime("SendMessage");
+    private static final Metrics.Histogram getHistoryTime = commandTime("GetHistory");
+    private static final Metrics.Histogram protocolTime = commandTime("Protocol");
+    private static final Metrics.Histogram unknownCommandTime = commandTime("Unknown");
+    private static final Metrics.Histogram messageFanOutSize = fanOutSize("message");
+    private static final Metrics.Histogram newRoomFanOutSize = fanOutSize("new_room");
+    private static final Metrics.Histogram messageFanOutTime = fanOutTime("message");
+    private static final Metrics.Histogram newRoomFanOutTime = fanOutTime("new_room");
+
+    static {
+        Metrics.gauge("chat_connections_active", "Open client connections", () -> localNode.clients.size());
+        Metrics.gauge("chat_rooms", "Rooms", () -> localNode.rooms.size());
+        Metrics.gauge("chat_history_cache_bytes", "Estimated memory held by cached room history",
+                localNode.rooms::historyCacheBytes);
+        Metrics.computed("chat_room_members", "Members per room", () -> {
+            Metrics.Histogram members = Metrics.Histogram.snapshot("chat_room_members", "", 1);
+            for (Room room : localNode.rooms.all()) {
+                members.record(room.getMemberCount());
+            }
+            return members;
+        });
+        Metrics.counter("chat_outbound_dropped_total", "Frames dropped from full outbound queues", OutboundQueue.dropped::sum);
+        Metrics.counter("chat_outbound_coalesced_total", "Room notifications collapsed into RoomListChanged", OutboundQueue.coalesced::sum);
+        Metrics.counter("chat_outbound_overflow_disconnects_total", "Clients disconnected for a full outbound queue",
+                OutboundQueue.overflowDisconnects::sum);
+        Metrics.counter("chat_frames_written_total", "Frames written to sockets", OutboundQueue.framesWritten::sum);
+        Metrics.counter("chat_socket_writes_total", "Socket write calls", OutboundQueue.socketWrites::sum);
+        Metrics.counter("chat_log_dropped_total", "Log lines dropped with the log ring full", ChatLog::dropped);
+    }
+
+    private static Metrics.Histogram commandTime(String command) {
+        return Metrics.histogram("chat_command_seconds", "Time to handle a command", "command=\"" + command + "\"", 1e-9);
+    }
+
+    private static Metrics.Histogram fanOutSize(String kind) {
+        return Metrics.histogram("chat_fanout_recipients", "Recipients per fan-out", "kind=\"" + kind + "\"", 1);
+    }
+
+    private static Metrics.Histogram fanOutTime(String kind) {
+        return Metrics.histogram("chat_fanout_seconds", "Time to queue a fan-out to every recipient", "kind=\"" + kind + "\"", 1e-9);
+    }
+
+    public static void main(String[] args) {
+        int serverPort = Integer.getInteger("chat.server.port", 12345);
+        Cluster cluster;
+        try {
+            // Ownership has to be known before recovery, which keeps only our own rooms
+            ClusterBus bus = ClusterBus.fromProperties();
+            cluster = bus != null ? new Cluster(localNode, bus) : null;
+            EventLog eventLog = EventLog.fromProperties();
+            if (eventLog != null) {
+                localNode.rooms.recover(eventLog);
+            }
+            if (cluster != null) {
+                cluster.start();
+            }
+        } catch (IOException e) {
+            ChatLog.error("Cannot start the server", e);
+            return;
+        }
+        startStatsLogger();
+        Metrics.startEndpoint();
+        AdmissionControl admission = AdmissionControl.fromProperties(() -> localNode.clients.size());
+        admission.start(timers);
+
+        // -Dchat.server.mode=nio switches to the selector based event loops
+        String mode = System.getProperty("chat.server.mode", "thread");
+        if (mode.equals("nio")) {
+            int eventLoops = Integer.getInteger("chat.server.eventLoops",
+                    Runtime.getRuntime().availableProcessors());
+            try {
+                new NioServer(serverPort, eventLoops, admission).run();
+            } catch (IOException | InterruptedException e) {
+                ChatLog.error("Server stopped", e);
+            }
+            return;
+        }
+
+        // -Dchat.server.mode=virtual runs the blocking handlers on virtual threads
+        ExecutorService handlerExecutor = mode.equals("virtual")
+                ? newVirtualThreadExecutor()
+                : Executors.newCachedThreadPool();
+
+        try (ServerSocket serverSocket = new ServerSocket(serverPort, 1024)) {
+            ChatLog.info("MultiCast Server (" + mode + ") is running on port " + serverPort);
+
+            while (true) {
+                Socket clientSocket = serverSocket.accept();
+                long acceptedNanos = System.nanoTime();
+                if (!admission.admit()) {
+                    reject(clientSocket);
+                    continue;
+                }
+                try {
+                    SocketClientHandler clientHandler = new SocketClientHandler(clientSocket, handlerExecutor);
+                    register(clientHandler, acceptedNanos); // Add client to the list
+                    handlerExecutor.execute(clientHandler);
+                } catch (IOException e) {
+                    ChatLog.error("Cannot set up the accepted connection", e);
+                    clientSocket.close();
+                }
+            }
+
+        } catch (IOException | InterruptedException e) {
+            ChatLog.error("Server stopped", e);
+        }
+    }
+
+    // Tells a connection turned away by admission control why, then closes it
+    private static void reject(Socket socket) {
+        try (Socket rejected = socket) {
+            rejected.getOutputStream().write(TextProtocol.toBytes(AdmissionControl.SERVER_BUSY.duplicate()));
+        } catch (IOException e) {
+        }
+    }
+
+    // Looked up reflectively so the server still builds and runs on JDKs before 21
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            ChatLog.warn("Virtual threads need Java 21+, falling back to platform threads");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    static void register(ClientHandler clientHandler, long acceptedNanos) {
+        localNode.register(clientHandler);
+        clientHandler.watchIdle();
+        connectionsAccepted.increment();
+        acceptTime.recordSince(acceptedNanos);
+    }
+
+    // Periodically logs outbound queue depth and overflow counters and dumps the
+    // metrics, -Dchat.server.statsIntervalSeconds=0 turns it off
+    private static void startStatsLogger() {
+        int interval = Integer.getInteger("chat.server.statsIntervalSeconds", 60);
+        if (interval <= 0) {
+            return;
+        }
+        ScheduledExecutorService statsExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "stats-logger");
+            thread.setDaemon(true);
+            return thread;
+        });
+        statsExecutor.scheduleAtFixedRate(() -> {
+            ChatLog.info(outboundStats());
+            ChatLog.info("Metrics\n" + Metrics.scrape());
+        }, interval, interval, TimeUnit.SECONDS);
+    }
+
+    static String outboundStats() {
+        long totalDepth = 0;
+        int maxDepth = 0;
+        int peakDepth = 0;
+        for (ClientHandler clientHandler : localNode.clients) {
+            int depth = clientHandler.outbound.depth();
+            totalDepth += depth;
+            maxDepth = Math.max(maxDepth, depth);
+            peakDepth = Math.max(peakDepth, clientHandler.outbound.maxDepth());
+        }
+        return "Outbound queues: connections=" + localNode.clients.size()
+                + " depth=" + totalDepth + " max=" + maxDepth + " peak=" + peakDepth
+                + " dropped=" + OutboundQueue.dropped.sum()
+                + " coalesced=" + OutboundQueue.coalesced.sum()
+                + " overflowDisconnects=" + OutboundQueue.overflowDisconnects.sum()
+                + " framesWritten=" + OutboundQueue.framesWritten.sum()
+                + " socketWrites=" + OutboundQueue.socketWrites.sum()
+                + " logDropped=" + ChatLog.dropped();
+    }
+
+    // One server's rooms and connections and, in cluster mode, its link to the other
+    // nodes. The server process runs one; ClusterTest runs several side by side.
+    static final class Node {
+        final RoomRegistry rooms;
+        final List<ClientHandler> clients = new CopyOnWriteArrayList<>();
+        // Null outside cluster mode
+        volatile Cluster cluster;
+
+        Node(RoomRegistry rooms) {
+            this.rooms = rooms;
+        }
+
+        void register(ClientHandler clientHandler) {
+            clientHandler.node = this;
+            clients.add(clientHandler);
+        }
+
+        // NewRoom to every connection but the creator, who got RoomCreated
+        void announceRoom(Room room, ClientHandler creator) {
+            long start = System.nanoTime();
+            SharedFrame message = new SharedFrame(
+                    p -> p.newRoom(room.getId(), room.getName(), room.getCreatorName(), room.getGroup()));
+            int recipients = 0;
+            for (ClientHandler clientHandler : clients) {
+                if (clientHandler != creator) {
+                    clientHandler.sendRoomNotice(message);
+                    recipients++;
+                }
+            }
+            newRoomFanOutSize.record(recipients);
+            newRoomFanOutTime.recordSince(start);
+        }
+
+        // A room gone from the registry: its local members are let go and every
+        // connection told; the other nodes hear of it if the room was ours
+        void roomRemoved(Room room) {
+            for (ClientHandler member : room.members()) {
+                room.removeMember(member);
+            }
+            SharedFrame message = new SharedFrame(p -> ByteBuffer.wrap(p.roomDeleted(room.getId())).asReadOnlyBuffer());
+            for (ClientHandler clientHandler : clients) {
+                clientHandler.sendRoomNotice(message);
+            }
+            Cluster cluster = this.cluster;
+            if (cluster != null && cluster.owns(room.getId())) {
+                cluster.roomDeleted(room);
+            }
+        }
+    }
+
+    // Protocol handling shared by the blocking and the NIO transports
+    abstract static class ClientHandler {
+        private static final int MAX_INBOUND = WireProtocol.MAX_FRAME_LENGTH + 16;
+
+        // Node the connection belongs to
+        Node node = localNode;
+
+        private String userName;
+
+        String getUserName() {
+            return userName;
+        }
+
+        // Rooms this client is a member of, so a disconnect only visits those
+        final Set<Room> joinedRooms = ConcurrentHashMap.newKeySet();
+
+        final OutboundQueue outbound = new OutboundQueue(this::scheduleDrain);
+
+        // Wire protocol spoken on this connection, text until the client negotiates binary
+        volatile WireProtocol protocol = WireProtocol.TEXT;
+
+        // Id the client tagged the request being decoded with, 0 if none. Set by the
+        // decoder around each command; replies sent later capture it first.
+        long requestId;
+
+        // Received bytes not decoded yet, kept in write mode between reads
+        private ByteBuffer inbound = ByteBuffer.allocate(1024);
+
+        // Heartbeat state: last time anything arrived, and the silence already pinged
+        // about, which only the timer wheel touches
+        private volatile long lastReceivedNanos = System.nanoTime();
+        private long pingedAfterNanos;
+        private volatile boolean gone;
+
+        // Rate limits of this connection, null where off
+        private final TokenBucket commandRate = COMMAND_LIMIT.newBucket();
+        private final TokenBucket createRoomRate = CREATE_ROOM_LIMIT.newBucket();
+        private final TokenBucket getRoomsRate = GET_ROOMS_LIMIT.newBucket();
+        private final TokenBucket joinRoomRate = JOIN_ROOM_LIMIT.newBucket();
+        private final TokenBucket sendMessageRate = SEND_MESSAGE_LIMIT.newBucket();
+        private final TokenBucket getHistoryRate = GET_HISTORY_LIMIT.newBucket();
+
+        // Starts the transport's writer for frames waiting in outbound
+        abstract void scheduleDrain();
+
+        // Closes the connection, may be called from any thread
+        abstract void close();
+
+        // Feeds bytes read by the transport through the connection's protocol;
+        // the protocol is re-read per frame so a switch applies to the very next byte
+        void received(ByteBuffer data) throws WireProtocol.ProtocolException {
+            lastReceivedNanos = System.nanoTime();
+            while (data.hasRemaining()) {
+                if (!inbound.hasRemaining()) {
+                    if (inbound.capacity() >= MAX_INBOUND) {
+                        throw new WireProtocol.ProtocolException("Request frame too long");
+                    }
+                    inbound.flip();
+                    inbound = ByteBuffer.allocate(Math.min(inbound.capacity() * 2, MAX_INBOUND)).put(inbound);
+                }
+                int count = Math.min(inbound.remaining(), data.remaining());
+                ByteBuffer chunk = data.duplicate();
+                chunk.limit(chunk.position() + count);
+                inbound.put(chunk);
+                data.position(data.position() + count);
+
+                inbound.flip();
+                while (inbound.hasRemaining() && protocol.decode(inbound, this)) {
+                }
+                inbound.compact();
+            }
+        }
+
+        // Queues an already encoded frame that may be shared with other clients
+        void send(ByteBuffer frame) {
+            if (!outbound.offer(frame)) {
+                overflowed();
+            }
+        }
+
+        // Queues a fan-out message, encoded at most once per protocol across all recipients.
+        // Picking the encoding under the queue lock keeps it in step with switchProtocol.
+        void send(SharedFrame frame) {
+            boolean accepted;
+            synchronized (outbound) {
+                accepted = outbound.offer(frame.frameFor(protocol));
+            }
+            if (!accepted) {
+                overflowed();
+            }
+        }
+
+        void sendRoomNotice(SharedFrame frame) {
+            boolean accepted;
+            synchronized (outbound) {
+                accepted = outbound.offerRoomNotice(frame.frameFor(protocol));
+            }
+            if (!accepted) {
+                overflowed();
+            }
+        }
+
+        // Queues a reply to this client's own request
+        void reply(ByteBuffer frame) {
+            if (!outbound.offerReply(frame)) {
+                overflowed();
+            }
+        }
+
+        private void overflowed() {
+            ChatLog.warn("Disconnecting slow client, outbound queue full");
+            close();
+        }
+
+        // Starts the heartbeat checks on the timer wheel, called once the transport registered the connection
+        void watchIdle() {
+            if (HEARTBEAT_NANOS > 0) {
+                timers.schedule(this::checkIdle, HEARTBEAT_NANOS);
+            }
+        }
+
+        // Runs on the timer wheel: pings once per silence, closes after the idle timeout,
+        // and otherwise comes back when the next of the two is due
+        private void checkIdle() {
+            if (gone) {
+                return;
+            }
+            long lastReceived = lastReceivedNanos;
+            long idle = System.nanoTime() - lastReceived;
+            if (IDLE_TIMEOUT_NANOS > 0 && idle >= IDLE_TIMEOUT_NANOS) {
+                idleDisconnects.increment();
+                ChatLog.info("Closing connection of '" + userName + "', idle for "
+                        + TimeUnit.NANOSECONDS.toSeconds(idle) + "s");
+                close();
+                return;
+            }
+            if (idle >= HEARTBEAT_NANOS && pingedAfterNanos != lastReceived) {
+                pingedAfterNanos = lastReceived;
+                heartbeatsSent.increment();
+                reply(protocol.ping());
+            }
+            long due = pingedAfterNanos != lastReceived ? HEARTBEAT_NANOS
+                    : IDLE_TIMEOUT_NANOS > 0 ? IDLE_TIMEOUT_NANOS : idle + HEARTBEAT_NANOS;
+            timers.schedule(this::checkIdle, due - idle);
+        }
+
+        // Charges a command to the connection's overall bucket and to its own, if any; a
+        // refused command costs neither. The RateLimited reply is queued like fan-out, so
+        // a client flooding without reading loses those first instead of growing its queue.
+        private boolean allow(TokenBucket commandTypeRate, String command) {
+            long now = System.nanoTime();
+            if (commandTypeRate == null || commandTypeRate.tryAcquire(now)) {
+                if (commandRate == null || commandRate.tryAcquire(now)) {
+                    return true;
+                }
+                if (commandTypeRate != null) {
+                    commandTypeRate.refund(1);
+                }
+            }
+            if (requestId != 0) {
+                // The client waits for this one
+                reply(protocol.tagged(requestId, protocol.rateLimited(command)));
+            } else {
+                send(protocol.rateLimited(command));
+            }
+            return false;
+        }
+
+        // Commands, called by the protocol decoders
+
+        void getRooms(long sinceVersion) {
+            if (!allow(getRoomsRate, "GetRooms")) {
+                return;
+            }
+            long start = System.nanoTime();
+            sendRoomList(sinceVersion);
+            getRoomsTime.recordSince(start);
+        }
+
+        void createRoom(String roomName) {
+            if (!allow(createRoomRate, "CreateRoom")) {
+                return;
+            }
+            long start = System.nanoTime();
+            Cluster cluster = node.cluster;
+            // A room owned by another cluster node is created there, which answers later
+            if (cluster != null && cluster.forwardCreateRoom(roomName, this)) {
+                createRoomTime.recordSince(start);
+                return;
+            }
+            Room room = node.rooms.create(roomName, this);
+            reply(protocol.tagged(requestId,
+                    protocol.roomCreated(room.getId(), room.getName(), room.getCreatorName(), room.getGroup())));
+
+            // Log the room creation with timestamp
+            ChatLog.info("User '" + userName + "' created room '" + roomName + "'");
+
+            // Notify all clients about the new room
+            node.announceRoom(room, this);
+            if (cluster != null) {
+                cluster.roomCreated(room);
+            }
+            createRoomTime.recordSince(start);
+        }
+
+        // The text protocol sends the room's name ahead of the user's and either may hold
+        // spaces; the room's actual name, known from the id, tells where the user's starts
+        void joinRoomNamed(int roomId, String roomAndUserName) {
+            Room room = node.rooms.getById(roomId);
+            String userName;
+            if (room != null && roomAndUserName.startsWith(room.getName() + " ")) {
+                userName = roomAndUserName.substring(room.getName().length() + 1);
+            } else {
+                int space = roomAndUserName.indexOf(' ');
+                userName = space < 0 ? roomAndUserName : roomAndUserName.substring(space + 1);
+            }
+            joinRoom(roomId, null, userName);
+        }
+
+        // roomName only matters for the log, binary clients identify the room by id alone
+        void joinRoom(int roomId, String roomName, String userName) {
+            if (!allow(joinRoomRate, "JoinRoom")) {
+                return;
+            }
+            long start = System.nanoTime();
+            Room room = node.rooms.getById(roomId);
+            boolean member = room != null && joinedRooms.contains(room);
+            if (room != null && room.addMember(this)) {
+                this.userName = userName;
+                roomName = room.getName();
+                Cluster cluster = node.cluster;
+                if (cluster != null && !member) {
+                    cluster.joined(room, userName);
+                }
+            }
+            ChatLog.info("User '" + userName + "' joined room '" + roomName + "'");
+            joinRoomTime.recordSince(start);
+        }
+
+        // The text protocol sends the room id, older clients the room's name. Names are
+        // not unique, so either way only a room this connection joined is left.
+        void leaveRoom(String roomIdOrName, String userName) {
+            Room room = null;
+            try {
+                room = node.rooms.getById(Integer.parseInt(roomIdOrName));
+            } catch (NumberFormatException e) {
+                // A name
+            }
+            if (room == null || !joinedRooms.contains(room)) {
+                room = null;
+                for (Room joined : joinedRooms) {
+                    if (joined.getName().equals(roomIdOrName)) {
+                        room = joined;
+                        break;
+                    }
+                }
+            }
+            leaveRoom(room, room != null ? room.getName() : roomIdOrName, userName);
+        }
+
+        void leaveRoom(int roomId, String userName) {
+            Room room = node.rooms.getById(roomId);
+            leaveRoom(room, room != null ? room.getName() : String.valueOf(roomId), userName);
+        }
+
+        private void leaveRoom(Room room, String roomName, String userName) {
+            long start = System.nanoTime();
+            if (room != null) {
+                removeFrom(room);
+            }
+            ChatLog.info("User '" + userName + "' left room '" + roomName + "'");
+            leaveRoomTime.recordSince(start);
+        }
+
+        void sendMessage(int roomId, String text) {
+            if (!allow(sendMessageRate, "SendMessage")) {
+                return;
+            }
+            long start = System.nanoTime();
+            Room room = node.rooms.getById(roomId);
+            if (room != null && joinedRooms.contains(room)) {
+                Cluster cluster = node.cluster;
+                boolean sent;
+                if (cluster != null) {
+                    sent = cluster.sendMessage(room, userName, text);
+                } else if (sent = !node.rooms.logBacklogged() && room.admitMessage()) {
+                    room.broadcastMessage(userName, text);
+                    node.rooms.messageSent(room, userName, text);
+                }
+                if (!sent) {
+                    send(protocol.rateLimited("SendMessage"));
+                }
+            }
+            sendMessageTime.recordSince(start);
+        }
+
+        // Answered from the room's cached tail when it reaches back far enough; otherwise
+        // the history reader adds what is on disk and replies, possibly after replies
+        // to later commands. Another cluster node's room is asked of that node.
+        void getHistory(int roomId, long beforeSeq, int limit) {
+            if (!allow(getHistoryRate, "GetHistory")) {
+                return;
+            }
+            long start = System.nanoTime();
+            Cluster cluster = node.cluster;
+            if (cluster != null && !cluster.owns(roomId)) {
+                cluster.getHistory(roomId, beforeSeq, limit, this);
+                getHistoryTime.recordSince(start);
+                return;
+            }
+            RoomRegistry rooms = node.rooms;
+            List<EventLog.MessageRecord> page = new ArrayList<>();
+            long nextBeforeSeq = rooms.cachedHistory(roomId, beforeSeq, limit, page);
+            if (nextBeforeSeq >= 0) {
+                reply(protocol.tagged(requestId, protocol.history(roomId, page, nextBeforeSeq)));
+            } else {
+                long request = requestId;
+                historyReader.execute(() -> {
+                    long next = rooms.history(roomId, beforeSeq, limit, page);
+                    reply(protocol.tagged(request, protocol.history(roomId, page, next)));
+                    getHistoryTime.recordSince(start);
+                });
+                return;
+            }
+            getHistoryTime.recordSince(start);
+        }
+
+        // Acknowledged in the old protocol, everything after the ack uses the new one
+        void switchProtocol(String name) {
+            if (!allow(null, "Protocol")) {
+                return;
+            }
+            long start = System.nanoTime();
+            WireProtocol requested = WireProtocol.forName(name);
+            if (requested == null) {
+                reply(TextProtocol.encodeLine("ProtocolRejected " + name));
+            } else {
+                synchronized (outbound) {
+                    reply(TextProtocol.encodeLine("ProtocolAccepted " + name));
+                    protocol = requested;
+                    outbound.roomListChangedFrame(requested.roomListChanged());
+                }
+            }
+            protocolTime.recordSince(start);
+        }
+
+        void ping() {
+            if (!allow(null, "Ping")) {
+                return;
+            }
+            reply(protocol.tagged(requestId, protocol.pong()));
+        }
+
+        // Answer to our ping, received() already noted the activity
+        void pong() {
+        }
+
+        void unknownCommand() {
+            if (!allow(null, "UnknownCommand")) {
+                return;
+            }
+            long start = System.nanoTime();
+            reply(protocol.tagged(requestId, protocol.unknownCommand()));
+            unknownCommandTime.recordSince(start);
+        }
+
+        // Called once by the transport when the connection is gone
+        void disconnected() {
+            gone = true;
+            node.clients.remove(this); // Remove client when disconnected
+            for (Room room : joinedRooms) {
+                removeFrom(room);
+            }
+            outbound.clear();
+        }
+
+        // The last member out removes the room, which frees its multicast group. In
+        // cluster mode only the room's owner removes it, other nodes report the leave.
+        private void removeFrom(Room room) {
+            boolean member = joinedRooms.contains(room);
+            room.removeMember(this);
+            Cluster cluster = node.cluster;
+            if (cluster != null && !cluster.owns(room.getId())) {
+                if (member) {
+                    cluster.left(room, userName);
+                }
+            } else if (room.getMemberCount() == 0 && node.rooms.removeIfEmpty(room)) {
+                ChatLog.info("Room '" + room.getName() + "' is empty, removed");
+                node.roomRemoved(room);
+            }
+        }
+
+        // Served from the registry's pre-encoded frames, nothing is formatted per request
+        private void sendRoomList(long sinceVersion) {
+            ByteBuffer[] frames = node.rooms.roomListFrames(protocol, sinceVersion);
+            for (int i = 0; i < frames.length - 1; i++) {
+                reply(frames[i]);
+            }
+            // The end frame stands alone, tagging it copies only that
+            reply(protocol.tagged(requestId, frames[frames.length - 1]));
+            ChatLog.info("Room list sent" + (sinceVersion < 0 ? "" : " since version " + sinceVersion));
+        }
+    }
+
+    // A fan-out message encoded lazily, at most once per wire protocol, and shared
+    // read-only by every recipient. Used by a single sending thread.
+    static final class SharedFrame {
+        private final Function<WireProtocol, ByteBuffer> encoder;
+        private final ByteBuffer[] frames = new ByteBuffer[WireProtocol.ALL.length];
+
+        SharedFrame(Function<WireProtocol, ByteBuffer> encoder) {
+            this.encoder = encoder;
+        }
+
+        ByteBuffer frameFor(WireProtocol protocol) {
+            ByteBuffer frame = frames[protocol.index()];
+            if (frame == null) {
+                frame = encoder.apply(protocol);
+                frames[protocol.index()] = frame;
+            }
+            return frame;
+        }
+    }
+
+    // Handles a client connection on its own blocking thread
+    private static class SocketClientHandler extends ClientHandler implements Runnable {
+        private Socket socket;
+        private InputStream in;
+        private OutputStream out;
+        private WritableByteChannel outChannel;
+        private final ExecutorService writerExecutor;
+        private long lastFlushNanos;
+        private volatile boolean closed;
+
+        public SocketClientHandler(Socket clientSocket, ExecutorService writerExecutor) throws IOException {
+            this.socket = clientSocket;
+            this.writerExecutor = writerExecutor;
+            in = socket.getInputStream();
+            out = new BufferedOutputStream(new CountingOutputStream(socket.getOutputStream()), 64 * 1024);
+            outChannel = Channels.newChannel(out);
+        }
+
+        public void run() {
+            try {
+                byte[] buffer = new byte[8192];
+                int count;
+                while ((count = in.read(buffer)) != -1) {
+                    received(ByteBuffer.wrap(buffer, 0, count));
+                }
+
+            } catch (WireProtocol.ProtocolException e) {
+                ChatLog.info("Closing connection, " + e.getMessage());
+            } catch (IOException e) {
+                // Closed from our side, e.g. for being idle or too slow
+                if (!closed) {
+                    ChatLog.error("Connection failed", e);
+                }
+            } finally {
+                disconnected();
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+
+        void scheduleDrain() {
+            writerExecutor.execute(this::drain);
+        }
+
+        // Writes queued frames until the queue is empty and flushes once at the end;
+        // only this writer blocks on a slow socket
+        private void drain() {
+            List<ByteBuffer> batch = new ArrayList<>();
+            try {
+                long wait = lastFlushNanos + OutboundQueue.FLUSH_WINDOW_NANOS - System.nanoTime();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+                do {
+                    while (outbound.drainTo(batch, 64) > 0) {
+                        for (ByteBuffer frame : batch) {
+                            outChannel.write(frame.duplicate());
+                        }
+                        OutboundQueue.framesWritten.add(batch.size());
+                        batch.clear();
+                    }
+                    out.flush();
+                    lastFlushNanos = System.nanoTime();
+                } while (!outbound.release());
+            } catch (IOException | InterruptedException e) {
+                // Nothing more gets written, whatever is queued or still offered is dropped
+                outbound.clear();
+                close();
+            }
+        }
+
+        void close() {
+            closed = true;
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    // Counts the writes that reach the socket, each one is a syscall
+    private static class CountingOutputStream extends FilterOutputStream {
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            OutboundQueue.socketWrites.increment();
+            out.write(b, off, len);
+        }
+    }
+
+    // Room class
+    static class Room {
+        private int id;
+        private String name;
+        private ClientHandler creator;
+        private final String creatorName;
+        // Multicast group allocated by the registry, returned to the pool on removal
+        private final InetSocketAddress group;
+        // Set once the room is removed, guarded by the room lock
+        private boolean closed;
+        // Outbound messages, null when unlimited
+        private final TokenBucket deliveryRate = ROOM_DELIVERY_LIMIT.newBucket();
+
+        // O(1) join and leave; fan-out iterates a cached array rebuilt after changes
+        private final Set<ClientHandler> members = ConcurrentHashMap.newKeySet();
+        private final AtomicInteger membersVersion = new AtomicInteger();
+        private volatile MemberSnapshot memberSnapshot = new MemberSnapshot(-1, new ClientHandler[0]);
+
+        // Cluster mode, on the room's owner: members connected to other nodes, counted
+        // per node and guarded by the room lock, and the nodes messages are relayed to
+        private final Map<String, Integer> remoteMembers = new HashMap<>();
+        private volatile String[] remoteNodes = new String[0];
+
+        public Room(int id, String name, ClientHandler creator, InetSocketAddress group) {
+            this.id = id;
+            this.name = name;
+            this.creator = creator;
+            this.group = group;
+            String creatorName = creator.getUserName();
+            this.creatorName = creatorName != null ? creatorName : "-";
+            addMember(creator);
+        }
+
+        // A room nobody here is in yet: recovered from the event log, created for a
+        // client of another cluster node, or owned by another node
+        public Room(int id, String name, String creatorName, InetSocketAddress group) {
+            this.id = id;
+            this.name = name;
+            this.group = group;
+            this.creatorName = creatorName;
+        }
+
+        // Getter methods
+        public int getId() { return id; }
+        public String getName() { return name; }
+        public ClientHandler getCreator() { return creator; }
+        public String getCreatorName() { return creatorName; }
+        public InetSocketAddress getGroup() { return group; }
+        public int getMemberCount() { return members.size(); }
+
+        // False once the room has been removed
+        public synchronized boolean addMember(ClientHandler member) {
+            if (closed) {
+                return false;
+            }
+            if (members.add(member)) {
+                member.joinedRooms.add(this);
+                membersVersion.incrementAndGet();
+            }
+            return true;
+        }
+
+        public void removeMember(ClientHandler member) {
+            if (members.remove(member)) {
+                member.joinedRooms.remove(this);
+                membersVersion.incrementAndGet();
+            }
+        }
+
+        // False once the room has been removed
+        synchronized boolean addRemoteMember(String node) {
+            if (closed) {
+                return false;
+            }
+            if (remoteMembers.merge(node, 1, Integer::sum) == 1) {
+                remoteNodes = remoteMembers.keySet().toArray(new String[0]);
+            }
+            return true;
+        }
+
+        // Takes away count of the node's members, all of them for Integer.MAX_VALUE
+        synchronized void removeRemoteMembers(String node, int count) {
+            Integer members = remoteMembers.get(node);
+            if (members == null) {
+                return;
+            }
+            if (members > count) {
+                remoteMembers.put(node, members - count);
+            } else {
+                remoteMembers.remove(node);
+                remoteNodes = remoteMembers.keySet().toArray(new String[0]);
+            }
+        }
+
+        String[] remoteNodes() {
+            return remoteNodes;
+        }
+
+        synchronized boolean closeIfEmpty() {
+            if (!members.isEmpty() || !remoteMembers.isEmpty()) {
+                return false;
+            }
+            closed = true;
+            return true;
+        }
+
+        synchronized void close() {
+            closed = true;
+        }
+
+        // Members as of the latest change. Reading the version before copying
+        // means a join racing with the copy leaves the snapshot stale, never wrong.
+        ClientHandler[] members() {
+            int version = membersVersion.get();
+            MemberSnapshot snapshot = memberSnapshot;
+            if (snapshot.version != version) {
+                snapshot = new MemberSnapshot(version, members.toArray(new ClientHandler[0]));
+                memberSnapshot = snapshot;
+            }
+            return snapshot.members;
+        }
+
+        // Encoded once per protocol, every member queues the same read-only buffer
+        public void sendMessageToMembers(SharedFrame message) {
+            long start = System.nanoTime();
+            ClientHandler[] members = members();
+            for (ClientHandler member : members) {
+                member.send(message);
+            }
+            messageFanOutSize.record(members.length);
+            messageFanOutTime.recordSince(start);
+        }
+
+        // Charges one message to the room's outbound rate, false means drop it
+        boolean admitMessage() {
+            return deliveryRate == null
+                    || deliveryRate.tryAcquire(System.nanoTime(), getMemberCount() + remoteNodes().length);
+        }
+
+        public void broadcastMessage(String senderName, String message) {
+            sendMessageToMembers(new SharedFrame(p -> p.message(id, senderName, message)));
+        }
+
+        private static class MemberSnapshot {
+            final int version;
+            final ClientHandler[] members;
+
+            MemberSnapshot(int version, ClientHandler[] members) {
+                this.version = version;
+                this.members = members;
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package chatroom;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+// Multicast groups handed out to rooms, configured as a block of consecutive
+// addresses sharing one port:
+//   -Dchat.multicast.base=239.255.42.0 -Dchat.multicast.groups=1024 -Dchat.multicast.port=5000
+// Released groups go to the back of the free list, so a recycled address has been
+// quiet the longest. Once every group is taken, rooms share groups round-robin.
+class MulticastGroupPool {
+    private final InetSocketAddress[] groups;
+    private final Map<InetSocketAddress, Integer> indexes = new HashMap<>();
+    // Number of rooms using each group
+    private final int[] users;
+    private final ArrayDeque<Integer> free = new ArrayDeque<>();
+    private int nextShared;
+
+    MulticastGroupPool(InetAddress base, int size, int port) {
+        if (!base.isMulticastAddress()) {
+            throw new IllegalArgumentException("Not a multicast address: " + base.getHostAddress());
+        }
+        groups = new InetSocketAddress[size];
+        users = new int[size];
+        byte[] address = base.getAddress();
+        for (int i = 0; i < size; i++) {
+            InetAddress group;
+            try {
+                group = InetAddress.getByAddress(address);
+            } catch (UnknownHostException e) {
+                throw new IllegalArgumentException(e);
+            }
+            if (!group.isMulticastAddress()) {
+                throw new IllegalArgumentException("Multicast pool runs past " + group.getHostAddress());
+            }
+            groups[i] = new InetSocketAddress(group, port);
+            indexes.put(groups[i], i);
+            free.addLast(i);
+            increment(address);
+        }
+    }
+
+    static MulticastGroupPool fromProperties() {
+        String base = System.getProperty("chat.multicast.base", "239.255.42.0");
+        int size = Integer.getInteger("chat.multicast.groups", 1024);
+        int port = Integer.getInteger("chat.multicast.port", 5000);
+        try {
+            return new MulticastGroupPool(InetAddress.getByName(base), Math.max(1, size), port);
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException("Bad chat.multicast.base " + base, e);
+        }
+    }
+
+    synchronized InetSocketAddress allocate() {
+        Integer index = free.pollFirst();
+        if (index == null) {
+            index = nextShared;
+            nextShared = (nextShared + 1) % groups.length;
+            ChatLog.warn("Multicast pool exhausted, sharing group "
+                    + groups[index].getAddress().getHostAddress());
+        }
+        users[index]++;
+        return groups[index];
+    }
+
+    synchronized void release(InetSocketAddress group) {
+        Integer index = indexes.get(group);
+        if (index != null && users[index] > 0 && --users[index] == 0) {
+            free.addLast(index);
+        }
+    }
+
+    synchronized int available() {
+        return free.size();
+    }
+
+    // Big-endian add one, works for IPv4 and IPv6 bases alike
+    private static void increment(byte[] address) {
+        for (int i = address.length - 1; i >= 0; i--) {
+            if (++address[i] != 0) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package chatroom;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+// Selector based server: one acceptor and a small pool of event loops
+// instead of one blocked thread per connection
+class NioServer {
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    private final int port;
+    private final EventLoop[] eventLoops;
+    private final AdmissionControl admission;
+
+    NioServer(int port, int eventLoopCount, AdmissionControl admission) throws IOException {
+        this.port = port;
+        this.admission = admission;
+        this.eventLoops = new EventLoop[Math.max(1, eventLoopCount)];
+        for (int i = 0; i < eventLoops.length; i++) {
+            eventLoops[i] = new EventLoop("chat-event-loop-" + i);
+        }
+    }
+
+    void run() throws IOException, InterruptedException {
+        for (EventLoop eventLoop : eventLoops) {
+            eventLoop.start();
+        }
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port), 1024);
+            ChatLog.info("MultiCast Server (nio, " + eventLoops.length + " event loops) is running on port " + port);
+
+            int next = 0;
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                long acceptedNanos = System.nanoTime();
+                if (!admission.admit()) {
+                    // Still blocking, the short line goes out in one write
+                    try (SocketChannel rejected = channel) {
+                        rejected.write(AdmissionControl.SERVER_BUSY.duplicate());
+                    } catch (IOException e) {
+                    }
+                    continue;
+                }
+                try {
+                    channel.configureBlocking(false);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    eventLoops[next].register(channel, acceptedNanos);
+                    next = (next + 1) % eventLoops.length;
+                } catch (IOException e) {
+                    ChatLog.error("Cannot set up the accepted connection", e);
+                    channel.close();
+                }
+            }
+        }
+    }
+
+    // Owns a selector and every connection registered with it
+    private static class EventLoop extends Thread {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        // Delayed tasks, only touched on this loop's thread
+        private final PriorityQueue<Timer> timers = new PriorityQueue<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+        EventLoop(String name) throws IOException {
+            super(name);
+            this.selector = Selector.open();
+            setDaemon(true);
+        }
+
+        void register(SocketChannel channel, long acceptedNanos) {
+            execute(() -> {
+                try {
+                    NioClientHandler clientHandler = new NioClientHandler(this, channel);
+                    clientHandler.key = channel.register(selector, SelectionKey.OP_READ, clientHandler);
+                    MultiCastServer.register(clientHandler, acceptedNanos);
+                } catch (IOException e) {
+                    ChatLog.error("Cannot register the connection", e);
+                    closeQuietly(channel);
+                }
+            });
+        }
+
+        // Runs the task on this loop's thread
+        void execute(Runnable task) {
+            tasks.add(task);
+            if (Thread.currentThread() != this) {
+                selector.wakeup();
+            }
+        }
+
+        // Runs the task on this loop's thread after the delay; must be called on this loop
+        void schedule(Runnable task, long delayNanos) {
+            timers.add(new Timer(System.nanoTime() + delayNanos, task));
+        }
+
+        public void run() {
+            while (true) {
+                try {
+                    // Tasks queued from this thread did not wake the selector
+                    Timer nextTimer = timers.peek();
+                    if (!tasks.isEmpty()) {
+                        selector.selectNow();
+                    } else if (nextTimer != null) {
+                        long timeoutNanos = nextTimer.deadline - System.nanoTime();
+                        if (timeoutNanos > 0) {
+                            selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(timeoutNanos)));
+                        } else {
+                            selector.selectNow();
+                        }
+                    } else {
+                        selector.select();
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        NioClientHandler clientHandler = (NioClientHandler) key.attachment();
+                        if (!key.isValid()) {
+                            clientHandler.close();
+                            continue;
+                        }
+                        try {
+                            if (key.isWritable()) {
+                                clientHandler.flush();
+                            }
+                            if (key.isValid() && key.isReadable()) {
+                                clientHandler.read(readBuffer);
+                            }
+                        } catch (RuntimeException | StackOverflowError e) {
+                            // Only the connection that failed goes, not everyone on this loop
+                            ChatLog.error("Closing connection after an unexpected error", e);
+                            clientHandler.close();
+                        }
+                    }
+
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    long now = System.nanoTime();
+                    while ((nextTimer = timers.peek()) != null && nextTimer.deadline - now <= 0) {
+                        timers.poll().task.run();
+                    }
+                } catch (Throwable e) {
+                    // A misbehaving connection or task must not take the loop down
+                    ChatLog.error("Event loop error", e);
+                }
+            }
+        }
+    }
+
+    private static class Timer implements Comparable<Timer> {
+        final long deadline;
+        final Runnable task;
+
+        Timer(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+
+        public int compareTo(Timer other) {
+            return Long.compare(deadline - other.deadline, 0);
+        }
+    }
+
+    // One non-blocking connection; reads, decoding and writes all happen on its event loop
+    private static class NioClientHandler extends MultiCastServer.ClientHandler {
+        private final EventLoop eventLoop;
+        private final SocketChannel channel;
+        private SelectionKey key;
+
+        private volatile boolean closed;
+
+        // Frames being written with one gathering write, duplicated from the shared buffers
+        private final List<ByteBuffer> batch = new ArrayList<>();
+        private final ByteBuffer[] pending = new ByteBuffer[256];
+        private int pendingOffset;
+        private int pendingCount;
+        private long lastFlushNanos;
+
+        NioClientHandler(EventLoop eventLoop, SocketChannel channel) {
+            this.eventLoop = eventLoop;
+            this.channel = channel;
+        }
+
+        // Called by the outbound queue from any thread, e.g. another loop broadcasting a new room
+        void scheduleDrain() {
+            eventLoop.execute(this::flushSoon);
+        }
+
+        // Flushes right away when idle; under load waits out the flush window so
+        // the frames that pile up meanwhile leave in one gathering write
+        private void flushSoon() {
+            long delay = lastFlushNanos + OutboundQueue.FLUSH_WINDOW_NANOS - System.nanoTime();
+            if (delay > 0) {
+                eventLoop.schedule(this::flush, delay);
+            } else {
+                flush();
+            }
+        }
+
+        void read(ByteBuffer readBuffer) {
+            int count;
+            do {
+                readBuffer.clear();
+                try {
+                    count = channel.read(readBuffer);
+                } catch (IOException e) {
+                    close();
+                    return;
+                }
+                if (count < 0) {
+                    close();
+                    return;
+                }
+                readBuffer.flip();
+                try {
+                    received(readBuffer);
+                } catch (WireProtocol.ProtocolException e) {
+                    ChatLog.info("Closing connection, " + e.getMessage());
+                    close();
+                }
+            } while (count == readBuffer.capacity() && !closed);
+        }
+
+        // Writes queued frames until the queue is empty or the socket buffer is full
+        void flush() {
+            if (closed) {
+                return;
+            }
+            try {
+                while (true) {
+                    if (pendingOffset == pendingCount) {
+                        batch.clear();
+                        pendingOffset = 0;
+                        pendingCount = outbound.drainTo(batch, pending.length);
+                        if (pendingCount == 0) {
+                            if (!outbound.release()) {
+                                continue;
+                            }
+                            lastFlushNanos = System.nanoTime();
+                            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                            return;
+                        }
+                        for (int i = 0; i < pendingCount; i++) {
+                            pending[i] = batch.get(i).duplicate();
+                        }
+                        OutboundQueue.framesWritten.add(pendingCount);
+                    }
+                    OutboundQueue.socketWrites.increment();
+                    channel.write(pending, pendingOffset, pendingCount - pendingOffset);
+                    while (pendingOffset < pendingCount && !pending[pendingOffset].hasRemaining()) {
+                        pending[pendingOffset++] = null;
+                    }
+                    if (pendingOffset < pendingCount) {
+                        // Socket buffer is full, wait for OP_WRITE
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+            } catch (IOException e) {
+                outbound.clear();
+                close();
+            }
+        }
+
+        void close() {
+            if (Thread.currentThread() != eventLoop) {
+                eventLoop.execute(this::close);
+                return;
+            }
+            if (closed) {
+                return;
+            }
+            closed = true;
+            Arrays.fill(pending, null);
+            if (key != null) {
+                key.cancel();
+            }
+            closeQuietly(channel);
+            disconnected();
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package chatroom;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Bounded per-connection queue of encoded outgoing frames. Fan-out only enqueues here;
+// the connection's own writer drains it, so a slow client cannot stall the sender.
+// Frames are shared read-only buffers, writers must duplicate() them before writing.
+class OutboundQueue {
+    enum OverflowPolicy { DROP_OLDEST, DISCONNECT, COALESCE }
+
+    static final int CAPACITY = Integer.getInteger("chat.outbound.capacity", 1024);
+    static final OverflowPolicy POLICY = OverflowPolicy.valueOf(
+            System.getProperty("chat.outbound.policy", "drop_oldest").toUpperCase());
+    // A writer that flushed less than this long ago waits out the rest of the window,
+    // so back-to-back frames under load leave in one write instead of many
+    static final long FLUSH_WINDOW_NANOS = TimeUnit.MICROSECONDS.toNanos(
+            Long.getLong("chat.outbound.flushWindowMicros", 1000));
+
+    // Totals across all connections
+    static final LongAdder dropped = new LongAdder();
+    static final LongAdder coalesced = new LongAdder();
+    static final LongAdder overflowDisconnects = new LongAdder();
+    static final LongAdder framesWritten = new LongAdder();
+    static final LongAdder socketWrites = new LongAdder();
+    // Frames waiting in all queues, watched by AdmissionControl
+    static final LongAdder queued = new LongAdder();
+
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final Runnable drainScheduler;
+
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+    private int droppableCount;
+    private int maxDepth;
+    private boolean draining;
+    // Set by an overflow that closes the connection or by clear(); nothing is queued after
+    private boolean closed;
+    // Sent in place of collapsed NewRoom notifications, the client re-fetches the list
+    private ByteBuffer roomListChanged = WireProtocol.TEXT.roomListChanged();
+
+    OutboundQueue(Runnable drainScheduler) {
+        this(CAPACITY, POLICY, drainScheduler);
+    }
+
+    OutboundQueue(int capacity, OverflowPolicy policy, Runnable drainScheduler) {
+        this.capacity = capacity;
+        this.policy = policy;
+        this.drainScheduler = drainScheduler;
+    }
+
+    // Queues a fan-out frame subject to the overflow policy.
+    // Returns false once, when the policy says the connection has to be closed.
+    boolean offer(ByteBuffer frame) {
+        return enqueue(frame, true, false);
+    }
+
+    // Queues a NewRoom notification, which the COALESCE policy may collapse
+    boolean offerRoomNotice(ByteBuffer frame) {
+        return enqueue(frame, true, true);
+    }
+
+    // Queues a direct reply to the client's own request. Replies are never dropped, but
+    // a client that keeps asking without reading is disconnected once capacity replies
+    // are waiting, whatever the policy.
+    boolean offerReply(ByteBuffer frame) {
+        return enqueue(frame, false, false);
+    }
+
+    private boolean enqueue(ByteBuffer frame, boolean droppable, boolean roomNotice) {
+        boolean scheduleDrain;
+        synchronized (this) {
+            if (closed) {
+                return true; // connection is already being closed
+            }
+            if (!droppable && entries.size() - droppableCount >= capacity) {
+                return overflow();
+            }
+            if (droppable && droppableCount >= capacity) {
+                switch (policy) {
+                    case DISCONNECT:
+                        return overflow();
+                    case COALESCE:
+                        if (coalesceRoomNotifications()) {
+                            if (roomNotice) {
+                                // Already covered by the RoomListChanged marker
+                                coalesced.increment();
+                                return true;
+                            }
+                            if (droppableCount >= capacity) {
+                                dropOldest();
+                            }
+                            break;
+                        }
+                        dropOldest();
+                        break;
+                    default:
+                        dropOldest();
+                }
+            }
+            entries.add(new Entry(frame, droppable, roomNotice, false));
+            queued.increment();
+            if (droppable) {
+                droppableCount++;
+            }
+            maxDepth = Math.max(maxDepth, entries.size());
+            scheduleDrain = !draining;
+            draining = true;
+        }
+        if (scheduleDrain) {
+            drainScheduler.run();
+        }
+        return true;
+    }
+
+    // Moves up to max queued frames into batch
+    synchronized int drainTo(List<ByteBuffer> batch, int max) {
+        int count = 0;
+        Entry entry;
+        while (count < max && (entry = entries.poll()) != null) {
+            if (entry.droppable) {
+                droppableCount--;
+            }
+            batch.add(entry.frame);
+            count++;
+        }
+        queued.add(-count);
+        return count;
+    }
+
+    // Called by the writer once everything it drained is on the wire. Returns false
+    // if more frames arrived meanwhile and the writer has to keep going; otherwise
+    // the next offer schedules a new drain.
+    synchronized boolean release() {
+        if (!entries.isEmpty()) {
+            return false;
+        }
+        draining = false;
+        return true;
+    }
+
+    // Follows the connection's wire protocol
+    synchronized void roomListChangedFrame(ByteBuffer frame) {
+        roomListChanged = frame;
+    }
+
+    synchronized int depth() {
+        return entries.size();
+    }
+
+    synchronized int maxDepth() {
+        return maxDepth;
+    }
+
+    // Drops what is queued and refuses later offers, once the connection is gone or its
+    // writes failed; frames left behind would count against AdmissionControl forever
+    synchronized void clear() {
+        closed = true;
+        queued.add(-entries.size());
+        entries.clear();
+        droppableCount = 0;
+    }
+
+    private boolean overflow() {
+        clear();
+        overflowDisconnects.increment();
+        return false;
+    }
+
+    private void dropOldest() {
+        for (Iterator<Entry> it = entries.iterator(); it.hasNext(); ) {
+            if (it.next().droppable) {
+                it.remove();
+                droppableCount--;
+                queued.decrement();
+                dropped.increment();
+                return;
+            }
+        }
+    }
+
+    // Replaces every queued NewRoom line with a single RoomListChanged marker
+    private boolean coalesceRoomNotifications() {
+        int removed = 0;
+        boolean hasMarker = false;
+        for (Iterator<Entry> it = entries.iterator(); it.hasNext(); ) {
+            Entry entry = it.next();
+            if (!entry.droppable) {
+                continue;
+            }
+            if (entry.roomNotice) {
+                it.remove();
+                droppableCount--;
+                removed++;
+            } else if (entry.marker) {
+                hasMarker = true;
+            }
+        }
+        if (removed == 0) {
+            return false;
+        }
+        coalesced.add(removed);
+        queued.add(-removed);
+        if (!hasMarker) {
+            entries.add(new Entry(roomListChanged, true, false, true));
+            droppableCount++;
+            queued.increment();
+        }
+        return true;
+    }
+
+    private static class Entry {
+        final ByteBuffer frame;
+        final boolean droppable;
+        final boolean roomNotice;
+        final boolean marker;
+
+        Entry(ByteBuffer frame, boolean droppable, boolean roomNotice, boolean marker) {
+            this.frame = frame;
+            this.droppable = droppable;
+            this.roomNotice = roomNotice;
+            this.marker = marker;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package chatroom;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+// Startup cost of the event log: appends a mix of room creations, deletions and chat
+// messages, then times reopening the log from its snapshot plus tail, and again with
+// the snapshots removed so every record is replayed. Also times a history page read
+// from the segments, what GetHistory costs when the room is not cached, and checks a
+// registry recovered from the log lists every room to a client asking for GetRooms 0.
+//   java -cp app/target/classes chatroom.RecoveryBenchmark [events] [live rooms]
+// Segment size and flush interval come from the usual -Dchat.wal.* properties.
+public class RecoveryBenchmark {
+    public static void main(String[] args) throws Exception {
+        int events = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int liveRooms = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        System.setProperty("chat.log.console", "false");
+        System.setProperty("chat.log.file", "");
+        // Full replay needs every segment still on disk
+        if (System.getProperty("chat.wal.retainSegments") == null) {
+            System.setProperty("chat.wal.retainSegments", String.valueOf(Integer.MAX_VALUE));
+        }
+
+        Path dir = Files.createTempDirectory("chat-wal-bench");
+        try {
+            long start = System.nanoTime();
+            int rooms = write(dir, events, liveRooms);
+            long elapsed = System.nanoTime() - start;
+            System.out.printf("append  %,d events in %,d ms (%,.0f events/s), %,d MB on disk%n", events,
+                    elapsed / 1_000_000, events * 1e9 / elapsed, size(dir) / (1024 * 1024));
+
+            // The first open of each file pays for reading it from disk; run each case
+            // twice and report the second
+            report("snapshot + tail", dir, rooms);
+            history(dir);
+            listed(dir, rooms);
+            try (Stream<Path> files = Files.list(dir)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    if (file.getFileName().toString().startsWith("snapshot-")) {
+                        Files.delete(file);
+                    }
+                }
+            }
+            report("full replay", dir, rooms);
+        } finally {
+            try (Stream<Path> files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    // Rooms come and go around liveRooms; 1 in 100 events changes a room, the rest are
+    // chat lines of a typical length. Returns the number of live rooms.
+    private static int write(Path dir, int events, int liveRooms) throws IOException {
+        EventLog log = EventLog.open(dir);
+        ArrayDeque<Integer> open = new ArrayDeque<>();
+        int nextRoom = 0;
+        for (int i = 0; i < events; i++) {
+            if (i % 100 == 0) {
+                if (open.size() < liveRooms || i % 200 == 0) {
+                    log.roomCreated(nextRoom, "room" + nextRoom, "user" + i % 1000);
+                    open.addLast(nextRoom++);
+                } else {
+                    log.roomDeleted(open.removeFirst());
+                }
+            } else if (!open.isEmpty()) {
+                log.message(open.peekLast() - i % Math.min(open.size(), 50), System.currentTimeMillis(), "user" + i % 1000,
+                        "a chat line of a typical length, around sixty bytes or so");
+            } else {
+                log.roomCreated(nextRoom, "room" + nextRoom, "user" + i % 1000);
+                open.addLast(nextRoom++);
+            }
+        }
+        log.close();
+        return open.size();
+    }
+
+    private static void report(String name, Path dir, int expectedRooms) throws IOException {
+        long elapsed = 0;
+        int rooms = 0;
+        for (int round = 0; round < 2; round++) {
+            long start = System.nanoTime();
+            EventLog log = EventLog.open(dir);
+            elapsed = System.nanoTime() - start;
+            rooms = log.rooms().size();
+            log.close();
+        }
+        if (rooms != expectedRooms) {
+            throw new IllegalStateException(name + " recovered " + rooms + " rooms, expected " + expectedRooms);
+        }
+        System.out.printf("recover %-16s %,6d ms, %,d rooms%n", name, elapsed / 1_000_000, rooms);
+    }
+
+    // What a client that just connected gets after a restart
+    private static void listed(Path dir, int expectedRooms) throws IOException {
+        EventLog log = EventLog.open(dir);
+        RoomRegistry registry = new RoomRegistry(new MulticastGroupPool(
+                InetAddress.getByName("239.255.0.0"), Math.max(1, expectedRooms), 5000));
+        registry.recover(log);
+        int listed = 0;
+        for (ByteBuffer frame : registry.roomListFrames(WireProtocol.TEXT, 0)) {
+            for (String line : StandardCharsets.UTF_8.decode(frame.duplicate()).toString().split("\n")) {
+                if (line.startsWith("Room ")) {
+                    listed++;
+                }
+            }
+        }
+        log.close();
+        if (listed != expectedRooms) {
+            throw new IllegalStateException("GetRooms 0 after recovery listed " + listed + " rooms, expected " + expectedRooms);
+        }
+        System.out.printf("GetRooms 0 after recovery lists %,d rooms%n", listed);
+    }
+
+    // The newest page of the oldest live room, whose messages lie furthest back
+    private static void history(Path dir) throws IOException {
+        EventLog log = EventLog.open(dir);
+        int roomId = log.rooms().get(0).id;
+        List<EventLog.MessageRecord> page = new ArrayList<>();
+        long elapsed = 0;
+        for (int round = 0; round < 2; round++) {
+            page.clear();
+            long start = System.nanoTime();
+            log.history(roomId, Long.MAX_VALUE, 50, page);
+            elapsed = System.nanoTime() - start;
+        }
+        log.close();
+        System.out.printf("history page from the log %,6d ms, %,d messages%n", elapsed / 1_000_000, page.size());
+    }
+
+    private static long size(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.mapToLong(path -> path.toFile().length()).sum();
+        }
+    }
+}
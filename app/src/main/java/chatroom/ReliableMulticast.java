@@ -0,0 +1,557 @@
+package chatroom;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+// Ordered, loss-repairing room chat over one multicast socket. Chat messages go
+// through the server; this only carries the [SYSTEM] join and leave notices that
+// members of a room multicast to each other.
+//
+// Every join starts a sender session with a random id whose messages are numbered
+// from 0. A receiver that joined before a session started recovers it from 0, one that
+// joined later starts at the first message it hears; the session age in each header
+// tells the two apart without synchronized clocks. Receivers track the next sequence number per sender, hold back messages that
+// arrive past a gap and multicast a NACK listing the missing ranges after a short
+// random delay; a receiver that hears someone else's NACK for the same hole waits
+// instead of adding its own. The sender answers from a ring of its recent messages.
+// Heartbeats, backing off while the sender is idle, let receivers notice a lost tail.
+// A gap that cannot be repaired after MAX_NACKS attempts is skipped. One NACK gets at
+// most MAX_REPAIR_PER_NACK messages back, and each receiver address has its own
+// -Dchat.limit.multicastRepair budget, so a single datagram cannot make the sender
+// multicast its whole ring.
+//
+// Messages queued while a datagram is being sent are packed into the next one, up to
+// -Dchat.multicast.mtu bytes, so the datagram count drops under load.
+//
+// Datagrams, all big-endian, after a header of type byte, roomId int, sessionId long
+// and the sender session's age in milliseconds as an int:
+//   DATA       1, firstSeq long, count short, count x (length short, UTF-8)
+//   NACK       2, ranges short, ranges x (fromSeq long, count int), sessionId names the sender asked
+//   HEARTBEAT  3, lastSeq long
+//
+// -Dchat.multicast.dropRate=0.1 drops that share of received datagrams, to exercise
+// the repair path on loopback.
+class ReliableMulticast {
+    static final int MTU = Integer.getInteger("chat.multicast.mtu", 1400);
+    static final int MAX_DATAGRAM = 65507;
+    private static final int REPAIR_CAPACITY = Integer.getInteger("chat.multicast.repairBuffer", 4096);
+    private static final long NACK_DELAY_NANOS =
+            TimeUnit.MILLISECONDS.toNanos(Integer.getInteger("chat.multicast.nackDelayMillis", 20));
+    private static final int MAX_NACKS = 16;
+    private static final int MAX_NACK_RANGES = 64;
+    private static final int MAX_REPAIR_PER_NACK = 256;
+    // Receiver addresses remembered per session for the repair budget, forgotten beyond that
+    private static final int MAX_REPAIR_BUCKETS = 1024;
+    private static final TokenBucket.Limit REPAIR_LIMIT =
+            TokenBucket.Limit.fromProperties("multicastRepair", 2048, MAX_REPAIR_PER_NACK);
+    // Messages held back behind a gap, beyond that the gap is given up
+    private static final int REORDER_LIMIT = 8192;
+    private static final long HEARTBEAT_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+    private static final long MAX_HEARTBEAT_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private static final long STREAM_IDLE_NANOS = TimeUnit.SECONDS.toNanos(60);
+
+    private static final byte DATA = 1;
+    private static final byte NACK = 2;
+    private static final byte HEARTBEAT = 3;
+    private static final int HEADER = 1 + 4 + 8 + 4;
+    private static final int DATA_HEADER = HEADER + 8 + 2;
+    // A message always fits a datagram on its own, larger ones are refused
+    static final int MAX_MESSAGE = MAX_DATAGRAM - DATA_HEADER - 2;
+
+    // Called on the receiving thread, in sequence order per sender
+    interface Listener {
+        void deliver(InetAddress sender, ByteBuffer text);
+    }
+
+    final LongAdder datagramsSent = new LongAdder();
+    final LongAdder messagesSent = new LongAdder();
+    final LongAdder retransmitted = new LongAdder();
+    final LongAdder nacksSent = new LongAdder();
+    final LongAdder nacksSuppressed = new LongAdder();
+    final LongAdder duplicates = new LongAdder();
+    final LongAdder lost = new LongAdder();
+    final LongAdder dropsInjected = new LongAdder();
+    final LongAdder malformed = new LongAdder();
+    final LongAdder repairsRefused = new LongAdder();
+
+    private final DatagramSocket socket;
+    private final Listener listener;
+    private final double dropRate;
+    private final Random random = new Random();
+    private final ScheduledExecutorService timer;
+    private final Thread sender;
+    private final BlockingQueue<Outgoing> outgoing = new LinkedBlockingQueue<>();
+
+    // Current room; receiver state below is guarded by this object's lock
+    private volatile Session session;
+    private long joinedNanos;
+    private final Map<Long, Stream> streams = new HashMap<>();
+
+    ReliableMulticast(DatagramSocket socket, Listener listener) {
+        this(socket, listener, Double.parseDouble(System.getProperty("chat.multicast.dropRate", "0")));
+    }
+
+    ReliableMulticast(DatagramSocket socket, Listener listener, double dropRate) {
+        this.socket = socket;
+        this.listener = listener;
+        this.dropRate = dropRate;
+        timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "multicast-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.scheduleWithFixedDelay(this::heartbeat, HEARTBEAT_NANOS, HEARTBEAT_NANOS, TimeUnit.NANOSECONDS);
+        sender = new Thread(this::sendLoop, "multicast-sender");
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    // Starts a new sender session in the room's group and forgets other senders
+    synchronized void join(InetSocketAddress group, int roomId) {
+        session = new Session(group, roomId, random.nextLong());
+        joinedNanos = System.nanoTime();
+        streams.clear();
+    }
+
+    synchronized void leave() {
+        session = null;
+        streams.clear();
+    }
+
+    // Queues a message for the current room, dropped when not in a room
+    void send(String text) {
+        byte[] data = text.getBytes(StandardCharsets.UTF_8);
+        if (data.length > MAX_MESSAGE) {
+            throw new IllegalArgumentException("Message of " + data.length + " bytes does not fit a datagram");
+        }
+        Session current = session;
+        if (current != null) {
+            outgoing.add(new Outgoing(current, data));
+        }
+    }
+
+    void close() {
+        timer.shutdownNow();
+        sender.interrupt();
+        outgoing.clear();
+    }
+
+    // Sending
+
+    // Sends one datagram per wake-up, with whatever queued up for the same session meanwhile
+    private void sendLoop() {
+        List<Outgoing> batch = new ArrayList<>();
+        ByteBuffer out = ByteBuffer.allocate(MAX_DATAGRAM);
+        try {
+            while (true) {
+                Outgoing first = outgoing.take();
+                batch.add(first);
+                int size = DATA_HEADER + 2 + first.data.length;
+                Outgoing next;
+                while ((next = outgoing.peek()) != null && next.session == first.session
+                        && size + 2 + next.data.length <= MTU && batch.size() < 0xFFFF) {
+                    batch.add(outgoing.poll());
+                    size += 2 + next.data.length;
+                }
+
+                Session s = first.session;
+                long firstSeq;
+                synchronized (s) {
+                    firstSeq = s.nextSeq;
+                    for (Outgoing message : batch) {
+                        s.repair[(int) (s.nextSeq++ % REPAIR_CAPACITY)] = message.data;
+                    }
+                    s.lastSentNanos = System.nanoTime();
+                    s.heartbeatNanos = HEARTBEAT_NANOS;
+                }
+                out.clear();
+                putData(out, s, firstSeq, batch);
+                transmit(out, s.group);
+                messagesSent.add(batch.size());
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+        }
+    }
+
+    private void putData(ByteBuffer out, Session s, long firstSeq, List<Outgoing> messages) {
+        putHeader(out, DATA, s.roomId, s.id, s.ageMillis());
+        out.putLong(firstSeq).putShort((short) messages.size());
+        for (Outgoing message : messages) {
+            out.putShort((short) message.data.length).put(message.data);
+        }
+    }
+
+    // Re-sends what the ring still holds of [from, from + count), packed like fresh data
+    private void retransmit(Session s, long from, int count) {
+        List<Outgoing> batch = new ArrayList<>();
+        ByteBuffer out = ByteBuffer.allocate(MAX_DATAGRAM);
+        synchronized (s) {
+            long start = Math.max(0, Math.max(from, s.nextSeq - REPAIR_CAPACITY));
+            long end = Math.min(from + count, s.nextSeq);
+            int size = DATA_HEADER;
+            long batchStart = start;
+            for (long seq = start; seq < end; seq++) {
+                byte[] data = s.repair[(int) (seq % REPAIR_CAPACITY)];
+                if (!batch.isEmpty() && size + 2 + data.length > MTU) {
+                    sendRetransmit(out, s, batchStart, batch);
+                    batchStart = seq;
+                    size = DATA_HEADER;
+                }
+                batch.add(new Outgoing(s, data));
+                size += 2 + data.length;
+            }
+            if (!batch.isEmpty()) {
+                sendRetransmit(out, s, batchStart, batch);
+            }
+        }
+    }
+
+    private void sendRetransmit(ByteBuffer out, Session s, long firstSeq, List<Outgoing> batch) {
+        out.clear();
+        putData(out, s, firstSeq, batch);
+        transmit(out, s.group);
+        retransmitted.add(batch.size());
+        batch.clear();
+    }
+
+    // Lets receivers find out about lost trailing messages after a burst
+    private void heartbeat() {
+        Session s = session;
+        if (s != null) {
+            long lastSeq = -1;
+            synchronized (s) {
+                long now = System.nanoTime();
+                if (s.nextSeq > 0 && now - s.lastSentNanos >= s.heartbeatNanos) {
+                    s.lastSentNanos = now;
+                    s.heartbeatNanos = Math.min(s.heartbeatNanos * 2, MAX_HEARTBEAT_NANOS);
+                    lastSeq = s.nextSeq - 1;
+                }
+            }
+            if (lastSeq >= 0) {
+                ByteBuffer out = ByteBuffer.allocate(HEADER + 8);
+                putHeader(out, HEARTBEAT, s.roomId, s.id, s.ageMillis());
+                out.putLong(lastSeq);
+                transmit(out, s.group);
+            }
+        }
+        expireStreams();
+    }
+
+    private static void putHeader(ByteBuffer out, byte type, int roomId, long sessionId, int ageMillis) {
+        out.put(type).putInt(roomId).putLong(sessionId).putInt(ageMillis);
+    }
+
+    private void transmit(ByteBuffer out, InetSocketAddress group) {
+        out.flip();
+        try {
+            socket.send(new DatagramPacket(out.array(), out.arrayOffset() + out.position(), out.remaining(), group));
+            datagramsSent.increment();
+        } catch (IOException e) {
+            // Best effort, the receivers' NACKs cover what did not go out
+        }
+    }
+
+    // Receiving
+
+    // Handles one datagram read from the socket; the packet's buffer may be reused afterwards
+    void received(DatagramPacket packet) {
+        if (dropRate > 0 && ThreadLocalRandom.current().nextDouble() < dropRate) {
+            dropsInjected.increment();
+            return;
+        }
+        Session current = session;
+        ByteBuffer in = ByteBuffer.wrap(packet.getData(), packet.getOffset(), packet.getLength());
+        if (current == null || in.remaining() < HEADER) {
+            return;
+        }
+        byte type = in.get();
+        int roomId = in.getInt();
+        long sessionId = in.getLong();
+        int ageMillis = in.getInt();
+        // Groups can be shared between rooms once the server's pool runs out
+        if (roomId != current.roomId) {
+            return;
+        }
+        try {
+            switch (type) {
+                case DATA:
+                    receivedData(in, sessionId, ageMillis, packet.getAddress());
+                    break;
+                case NACK:
+                    receivedNack(current, sessionId, in, packet.getAddress());
+                    break;
+                case HEARTBEAT:
+                    receivedHeartbeat(sessionId, ageMillis, in.getLong(), packet.getAddress());
+                    break;
+                default:
+            }
+        } catch (java.nio.BufferUnderflowException e) {
+            // Truncated datagram, ignored
+            malformed.increment();
+        }
+    }
+
+    private synchronized void receivedData(ByteBuffer in, long sessionId, int ageMillis, InetAddress source) {
+        long seq = in.getLong();
+        int count = in.getShort() & 0xFFFF;
+        Stream stream = streams.get(sessionId);
+        if (stream == null) {
+            stream = newStream(sessionId, ageMillis, source, seq);
+        }
+        stream.lastHeardNanos = System.nanoTime();
+        for (int i = 0; i < count; i++, seq++) {
+            int length = in.getShort() & 0xFFFF;
+            if (length > in.remaining()) {
+                // Truncated or corrupt, the rest of the datagram cannot be trusted
+                malformed.increment();
+                break;
+            }
+            ByteBuffer text = in.slice();
+            text.limit(length);
+            in.position(in.position() + length);
+
+            if (seq < stream.next || stream.early.containsKey(seq)) {
+                duplicates.increment();
+            } else if (seq == stream.next) {
+                listener.deliver(stream.source, text);
+                stream.next++;
+            } else {
+                byte[] copy = new byte[length];
+                text.get(copy);
+                stream.early.put(seq, copy);
+                stream.highest = Math.max(stream.highest, seq);
+            }
+        }
+        deliverEarly(stream);
+        if (stream.early.size() > REORDER_LIMIT) {
+            skipGap(stream);
+        }
+        checkGap(stream);
+    }
+
+    private synchronized void receivedHeartbeat(long sessionId, int ageMillis, long lastSeq, InetAddress source) {
+        Stream stream = streams.get(sessionId);
+        if (stream == null) {
+            stream = newStream(sessionId, ageMillis, source, lastSeq + 1);
+        }
+        stream.lastHeardNanos = System.nanoTime();
+        stream.highest = Math.max(stream.highest, lastSeq);
+        checkGap(stream);
+    }
+
+    // A session that started after we joined is wanted from its first message,
+    // of an older one we only get what is sent from now on
+    private Stream newStream(long sessionId, int ageMillis, InetAddress source, long firstHeard) {
+        long joinedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - joinedNanos);
+        Stream stream = new Stream(sessionId, source, ageMillis <= joinedMillis ? 0 : firstHeard);
+        stream.highest = Math.max(stream.highest, firstHeard - 1);
+        streams.put(sessionId, stream);
+        return stream;
+    }
+
+    private void receivedNack(Session current, long sessionId, ByteBuffer in, InetAddress source) {
+        int ranges = in.getShort() & 0xFFFF;
+        if (sessionId == current.id) {
+            TokenBucket budget = current.repairBudget(source);
+            int left = MAX_REPAIR_PER_NACK;
+            for (int i = 0; i < ranges && left > 0; i++) {
+                long from = in.getLong();
+                int count = Math.min(in.getInt(), left);
+                // Sequence numbers start at 0, anything else is not a NACK we sent
+                if (from >= 0 && count > 0) {
+                    if (budget != null && !budget.tryAcquire(System.nanoTime(), count)) {
+                        // The receiver NACKs again after backing off
+                        repairsRefused.increment();
+                        return;
+                    }
+                    retransmit(current, from, count);
+                    left -= count;
+                }
+            }
+            return;
+        }
+        // Someone else asked for the repair of our first hole, hold back our own request
+        synchronized (this) {
+            Stream stream = streams.get(sessionId);
+            if (stream == null || !stream.nackPending) {
+                return;
+            }
+            for (int i = 0; i < ranges; i++) {
+                long from = in.getLong();
+                int count = in.getInt();
+                if (from <= stream.next && from + count > stream.next) {
+                    stream.suppressedUntil = System.nanoTime() + NACK_DELAY_NANOS;
+                    return;
+                }
+            }
+        }
+    }
+
+    private void deliverEarly(Stream stream) {
+        byte[] data;
+        while ((data = stream.early.remove(stream.next)) != null) {
+            listener.deliver(stream.source, ByteBuffer.wrap(data));
+            stream.next++;
+        }
+    }
+
+    // Gives up on the hole in front of the first held back message
+    private void skipGap(Stream stream) {
+        Long first = stream.early.isEmpty() ? stream.highest + 1 : stream.early.firstKey();
+        lost.add(first - stream.next);
+        stream.next = first;
+        stream.nackTries = 0;
+        deliverEarly(stream);
+    }
+
+    private void checkGap(Stream stream) {
+        if (stream.highest >= stream.next && !stream.nackPending) {
+            stream.nackPending = true;
+            scheduleNack(stream);
+        }
+    }
+
+    // Random delay so receivers that saw the same loss don't all NACK at once, backing off per try
+    private void scheduleNack(Stream stream) {
+        long delay = NACK_DELAY_NANOS / 2 + (long) (random.nextDouble() * NACK_DELAY_NANOS / 2);
+        delay <<= Math.min(stream.nackTries, 2);
+        try {
+            timer.schedule(() -> nack(stream), delay, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            // Closed
+        }
+    }
+
+    private void nack(Stream stream) {
+        Session current = session;
+        ByteBuffer out = ByteBuffer.allocate(HEADER + 2 + MAX_NACK_RANGES * 12);
+        synchronized (this) {
+            if (current == null || streams.get(stream.sessionId) != stream) {
+                return;
+            }
+            if (stream.highest < stream.next) {
+                stream.nackPending = false;
+                stream.nackTries = 0;
+                return;
+            }
+            if (stream.nackFrom != stream.next) {
+                // Earlier hole repaired, a new one starts with a fresh budget
+                stream.nackFrom = stream.next;
+                stream.nackTries = 0;
+            }
+            if (stream.nackTries >= MAX_NACKS) {
+                skipGap(stream);
+                stream.nackPending = false;
+                checkGap(stream);
+                return;
+            }
+            stream.nackTries++;
+            scheduleNack(stream);
+            if (System.nanoTime() < stream.suppressedUntil) {
+                nacksSuppressed.increment();
+                return;
+            }
+            putHeader(out, NACK, current.roomId, stream.sessionId, 0);
+            int rangesAt = out.position();
+            out.putShort((short) 0);
+            short ranges = 0;
+            // Every hole between the next expected message and the highest seen
+            long from = stream.next;
+            for (long received : stream.early.keySet()) {
+                if (ranges == MAX_NACK_RANGES) {
+                    break;
+                }
+                if (received > from) {
+                    out.putLong(from).putInt((int) Math.min(received - from, REPAIR_CAPACITY));
+                    ranges++;
+                }
+                from = received + 1;
+            }
+            if (ranges < MAX_NACK_RANGES && from <= stream.highest) {
+                out.putLong(from).putInt((int) Math.min(stream.highest + 1 - from, REPAIR_CAPACITY));
+                ranges++;
+            }
+            out.putShort(rangesAt, ranges);
+        }
+        transmit(out, current.group);
+        nacksSent.increment();
+    }
+
+    private synchronized void expireStreams() {
+        long now = System.nanoTime();
+        streams.values().removeIf(stream -> now - stream.lastHeardNanos > STREAM_IDLE_NANOS);
+    }
+
+    // Our own messages in one room, with the ring that answers NACKs
+    private static class Session {
+        final InetSocketAddress group;
+        final int roomId;
+        final long id;
+        final long startNanos = System.nanoTime();
+        // Guarded by the session lock
+        final byte[][] repair = new byte[REPAIR_CAPACITY][];
+        long nextSeq;
+        long lastSentNanos;
+        // Quiet time before the next heartbeat, doubles while nothing new is sent
+        long heartbeatNanos = HEARTBEAT_NANOS;
+        private final Map<InetAddress, TokenBucket> repairBudgets = new HashMap<>();
+
+        Session(InetSocketAddress group, int roomId, long id) {
+            this.group = group;
+            this.roomId = roomId;
+            this.id = id;
+        }
+
+        // Null when the limit is off
+        synchronized TokenBucket repairBudget(InetAddress receiver) {
+            if (repairBudgets.size() >= MAX_REPAIR_BUCKETS && !repairBudgets.containsKey(receiver)) {
+                repairBudgets.clear();
+            }
+            return repairBudgets.computeIfAbsent(receiver, address -> REPAIR_LIMIT.newBucket());
+        }
+
+        int ageMillis() {
+            return (int) Math.min(Integer.MAX_VALUE, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        }
+    }
+
+    // What we have received from one sender session
+    private static class Stream {
+        final long sessionId;
+        final InetAddress source;
+        long next;
+        long highest;
+        final TreeMap<Long, byte[]> early = new TreeMap<>();
+        boolean nackPending;
+        int nackTries;
+        long nackFrom = -1;
+        long suppressedUntil;
+        long lastHeardNanos;
+
+        Stream(long sessionId, InetAddress source, long next) {
+            this.sessionId = sessionId;
+            this.source = source;
+            this.next = next;
+            this.highest = next - 1;
+        }
+    }
+
+    private static class Outgoing {
+        final Session session;
+        final byte[] data;
+
+        Outgoing(Session session, byte[] data) {
+            this.session = session;
+            this.data = data;
+        }
+    }
+}
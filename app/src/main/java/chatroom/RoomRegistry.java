@@ -0,0 +1,404 @@
+package chatroom;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntPredicate;
+
+// Thread-safe room index. Lookups by id and name are lock-free hash lookups;
+// mutations take the registry lock and also maintain the encoded room list
+// for every wire protocol, so GetRooms is answered from shared buffers
+// without formatting anything. Every room gets a multicast group from the pool,
+// which takes it back when the room is removed. Once recovered from an event log,
+// room changes and chat messages are appended to it. Chat messages are numbered by
+// their place in the log and the newest of each room are cached for GetHistory.
+// In cluster mode the registry also lists the rooms other nodes own, adopted from
+// their announcements; only rooms owned here get ids, groups and log records from it.
+class RoomRegistry {
+    // Number of recent changes kept for GetRooms <version> deltas
+    private static final int JOURNAL_CAPACITY = Integer.getInteger("chat.rooms.journalSize", 4096);
+    // Largest GetHistory page
+    static final int MAX_HISTORY_PAGE = 100;
+
+    private static final Metrics.Counter historyFromCache = Metrics.counter("chat_history_pages_total",
+            "GetHistory pages served", "source=\"cache\"");
+    private static final Metrics.Counter historyFromLog = Metrics.counter("chat_history_pages_total",
+            "GetHistory pages served", "source=\"log\"");
+
+    private final MulticastGroupPool groups;
+    // Whether a room id belongs to this node, every id outside cluster mode
+    private volatile IntPredicate owns = id -> true;
+    // Null until recover(), and in benchmarks
+    private volatile EventLog log;
+    private final AtomicInteger nextId = new AtomicInteger();
+    private final Map<Integer, MultiCastServer.Room> byId = new ConcurrentHashMap<>();
+    // Room names are not unique, the index points at the oldest room with the name
+    private final Map<String, MultiCastServer.Room> byName = new ConcurrentHashMap<>();
+    private final HistoryCache history = HistoryCache.fromProperties();
+    // Numbers messages when there is no event log to do it
+    private final AtomicLong nextSeq = new AtomicLong(1);
+
+    // Everything below is guarded by the registry lock
+    private long version;
+    private final ArrayDeque<Change> journal = new ArrayDeque<>();
+    private final EncodedList[] lists = new EncodedList[WireProtocol.ALL.length];
+
+    RoomRegistry(MulticastGroupPool groups) {
+        this.groups = groups;
+        for (WireProtocol protocol : WireProtocol.ALL) {
+            lists[protocol.index()] = new EncodedList(protocol);
+        }
+    }
+
+    // Set before recover() and before any room is created
+    void ownedBy(IntPredicate owns) {
+        this.owns = owns;
+    }
+
+    MultiCastServer.Room create(String name, MultiCastServer.ClientHandler creator) {
+        synchronized (this) {
+            MultiCastServer.Room room = new MultiCastServer.Room(nextOwnedId(), name, creator, groups.allocate());
+            added(room);
+            history.roomCreated(room.getId());
+            if (log != null) {
+                log.roomCreated(room.getId(), name, room.getCreatorName());
+            }
+            return room;
+        }
+    }
+
+    // A room created for a client of another cluster node, nobody here is in it
+    synchronized MultiCastServer.Room create(String name, String creatorName) {
+        MultiCastServer.Room room = new MultiCastServer.Room(nextOwnedId(), name, creatorName, groups.allocate());
+        added(room);
+        history.roomCreated(room.getId());
+        if (log != null) {
+            log.roomCreated(room.getId(), name, creatorName);
+        }
+        return room;
+    }
+
+    // Lists a room another cluster node owns; null if it is listed already
+    synchronized MultiCastServer.Room adopt(int id, String name, String creatorName, InetSocketAddress group) {
+        if (byId.containsKey(id)) {
+            return null;
+        }
+        MultiCastServer.Room room = new MultiCastServer.Room(id, name, creatorName, group);
+        added(room);
+        return room;
+    }
+
+    boolean owns(int id) {
+        return owns.test(id);
+    }
+
+    // Ids are dealt out in order, skipping those the hash ring gives to other nodes
+    private int nextOwnedId() {
+        int id;
+        do {
+            id = nextId.getAndIncrement();
+        } while (!owns.test(id));
+        return id;
+    }
+
+    private void added(MultiCastServer.Room room) {
+        byId.put(room.getId(), room);
+        byName.putIfAbsent(room.getName(), room);
+        byte[][] lines = new byte[lists.length][];
+        for (EncodedList list : lists) {
+            lines[list.protocol.index()] = list.append(room);
+        }
+        changed(lines);
+    }
+
+    // Brings back the rooms the log holds, empty, and logs every change from now on.
+    // Called once before clients connect and, in cluster mode, after ownedBy().
+    synchronized void recover(EventLog log) {
+        for (EventLog.RoomRecord record : log.rooms()) {
+            if (!owns.test(record.id)) {
+                // The cluster's nodes changed since the room was logged
+                ChatLog.warn("Room " + record.id + " '" + record.name + "' now belongs to another node, not restored");
+                continue;
+            }
+            MultiCastServer.Room room = new MultiCastServer.Room(record.id, record.name, record.creator, groups.allocate());
+            byId.put(room.getId(), room);
+            byName.putIfAbsent(room.getName(), room);
+            for (EncodedList list : lists) {
+                list.append(room);
+                list.invalidate();
+            }
+        }
+        // Clients start from GetRooms 0. The journal holds none of the recovered rooms,
+        // so version 0 has to fall behind it and be answered with the full list.
+        if (!byId.isEmpty()) {
+            version++;
+        }
+        nextId.set(Math.max(nextId.get(), log.nextRoomId()));
+        this.log = log;
+    }
+
+    // While the event log's writer is behind, messages are refused rather than relayed
+    // without being logged
+    boolean logBacklogged() {
+        EventLog log = this.log;
+        return log != null && log.backlogged();
+    }
+
+    // Logs a chat line relayed to the room and adds it to the room's cached tail
+    void messageSent(MultiCastServer.Room room, String sender, String text) {
+        String from = String.valueOf(sender);
+        long millis = System.currentTimeMillis();
+        EventLog log = this.log;
+        long seq = log != null ? log.message(room.getId(), millis, from, text) : nextSeq.getAndIncrement();
+        // Not logged, so it has no sequence number and stays out of the history as well
+        if (seq >= 0 && byId.get(room.getId()) == room) {
+            history.add(room.getId(), new EventLog.MessageRecord(seq, millis, from, text));
+        }
+    }
+
+    // Fills page, oldest first, with up to limit of the room's messages before beforeSeq
+    // (0 for the newest) from its cached tail alone. Returns the seq to ask before for
+    // the next older page, 0 when there is none, or -1 with page left empty when the
+    // event log has to be read, which history() does.
+    long cachedHistory(int roomId, long beforeSeq, int limit, List<EventLog.MessageRecord> page) {
+        limit = Math.min(limit, MAX_HISTORY_PAGE);
+        if (limit <= 0 || byId.get(roomId) == null) {
+            return 0;
+        }
+        if (!history.read(roomId, beforeSeq > 0 ? beforeSeq : Long.MAX_VALUE, limit, page) && log != null) {
+            page.clear();
+            return -1;
+        }
+        historyFromCache.increment();
+        return page.size() == limit ? page.get(0).lsn : 0;
+    }
+
+    // Like cachedHistory(), reading what the cached tail does not reach from the event
+    // log, and keeping it in the cache if it extends the tail. May block on disk.
+    long history(int roomId, long beforeSeq, int limit, List<EventLog.MessageRecord> page) {
+        limit = Math.min(limit, MAX_HISTORY_PAGE);
+        if (limit <= 0) {
+            return 0;
+        }
+        long before = beforeSeq > 0 ? beforeSeq : Long.MAX_VALUE;
+        EventLog log = this.log;
+        if (history.read(roomId, before, limit, page) || log == null) {
+            return page.size() == limit ? page.get(0).lsn : 0;
+        }
+        historyFromLog.increment();
+        long olderThan = page.isEmpty() ? before : page.get(0).lsn;
+        List<EventLog.MessageRecord> older = new ArrayList<>();
+        boolean more;
+        try {
+            more = log.history(roomId, olderThan, limit - page.size(), older);
+        } catch (IOException e) {
+            ChatLog.error("Reading the history of room " + roomId + " failed", e);
+            return 0;
+        }
+        history.prepend(roomId, olderThan, older, !more);
+        page.addAll(0, older);
+        return more ? page.get(0).lsn : 0;
+    }
+
+    // Estimated memory held by cached messages, for metrics
+    long historyCacheBytes() {
+        return history.bytes();
+    }
+
+    synchronized MultiCastServer.Room remove(int id) {
+        MultiCastServer.Room room = byId.remove(id);
+        if (room == null) {
+            return null;
+        }
+        byName.remove(room.getName(), room);
+        room.close();
+        // An adopted room's group belongs to its owner's pool
+        if (owns.test(id)) {
+            groups.release(room.getGroup());
+            history.roomDeleted(id);
+            if (log != null) {
+                log.roomDeleted(id);
+            }
+        }
+
+        byte[][] lines = new byte[lists.length][];
+        for (EncodedList list : lists) {
+            list.remove(id);
+            lines[list.protocol.index()] = list.protocol.roomDeleted(id);
+        }
+        changed(lines);
+        return room;
+    }
+
+    // Removes the room if nobody is in it; a join racing with this either lands
+    // first and keeps the room, or finds it closed
+    synchronized boolean removeIfEmpty(MultiCastServer.Room room) {
+        if (byId.get(room.getId()) != room || !room.closeIfEmpty()) {
+            return false;
+        }
+        remove(room.getId());
+        return true;
+    }
+
+    MultiCastServer.Room getById(int id) {
+        return byId.get(id);
+    }
+
+    MultiCastServer.Room getByName(String name) {
+        return byName.get(name);
+    }
+
+    // Live view, for metrics
+    Collection<MultiCastServer.Room> all() {
+        return byId.values();
+    }
+
+    int size() {
+        return byId.size();
+    }
+
+    synchronized long version() {
+        return version;
+    }
+
+    // Frames answering GetRooms. A negative sinceVersion asks for the full list
+    // (ending in a bare EndOfRoomList for text clients). Otherwise the client gets the
+    // changes since its version, or RoomListReset and the full list once the journal
+    // no longer reaches back, followed by the end of list marker with the version.
+    synchronized ByteBuffer[] roomListFrames(WireProtocol protocol, long sinceVersion) {
+        EncodedList list = lists[protocol.index()];
+        if (sinceVersion < 0) {
+            return new ByteBuffer[] { list.listFrame(), list.endFrame(version, false) };
+        }
+        ByteBuffer endFrame = list.endFrame(version, true);
+        if (sinceVersion == version) {
+            return new ByteBuffer[] { endFrame };
+        }
+        Change oldest = journal.peekFirst();
+        if (sinceVersion > version || oldest == null || sinceVersion < oldest.version - 1) {
+            return new ByteBuffer[] { protocol.roomListReset(), list.listFrame(), endFrame };
+        }
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        for (Change change : journal) {
+            if (change.version > sinceVersion) {
+                delta.writeBytes(change.lines[protocol.index()]);
+            }
+        }
+        return new ByteBuffer[] { ByteBuffer.wrap(delta.toByteArray()).asReadOnlyBuffer(), endFrame };
+    }
+
+    private void changed(byte[][] lines) {
+        version++;
+        journal.addLast(new Change(version, lines));
+        if (journal.size() > JOURNAL_CAPACITY) {
+            journal.removeFirst();
+        }
+        for (EncodedList list : lists) {
+            list.invalidate();
+        }
+    }
+
+    // Room list entries of one protocol in id order, each room encoded once. Creating a
+    // room appends in place; published frames only cover bytes written before them, so
+    // they never change. Removing a room only drops its entry, the list is put back
+    // together from the others when it is next asked for, so rooms emptying one after
+    // another cost nothing until a client wants the full list.
+    private static class EncodedList {
+        final WireProtocol protocol;
+        private final TreeMap<Integer, byte[]> entries = new TreeMap<>();
+        private byte[] bytes = new byte[4096];
+        private int length;
+        // bytes no longer matches entries
+        private boolean stale;
+        private ByteBuffer listFrame;
+        private ByteBuffer endFrame;
+        private ByteBuffer legacyEndFrame;
+
+        EncodedList(WireProtocol protocol) {
+            this.protocol = protocol;
+        }
+
+        byte[] append(MultiCastServer.Room room) {
+            byte[] entry = entry(room);
+            boolean last = entries.isEmpty() || entries.lastKey() < room.getId();
+            entries.put(room.getId(), entry);
+            if (stale || !last) {
+                // An adopted room can sort before ours
+                stale = true;
+                return entry;
+            }
+            if (length + entry.length > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + entry.length));
+            }
+            System.arraycopy(entry, 0, bytes, length, entry.length);
+            length += entry.length;
+            return entry;
+        }
+
+        void remove(int id) {
+            if (entries.remove(id) != null) {
+                stale = true;
+            }
+        }
+
+        // Concatenates the entries into a new array, frames already handed out keep the old one
+        private void rebuild() {
+            ByteArrayOutputStream list = new ByteArrayOutputStream(Math.max(length, 16));
+            for (byte[] entry : entries.values()) {
+                list.writeBytes(entry);
+            }
+            bytes = list.toByteArray();
+            length = bytes.length;
+            stale = false;
+        }
+
+        void invalidate() {
+            listFrame = null;
+            endFrame = null;
+            legacyEndFrame = null;
+        }
+
+        ByteBuffer listFrame() {
+            if (listFrame == null) {
+                if (stale) {
+                    rebuild();
+                }
+                listFrame = ByteBuffer.wrap(bytes, 0, length).slice().asReadOnlyBuffer();
+            }
+            return listFrame;
+        }
+
+        ByteBuffer endFrame(long version, boolean versioned) {
+            if (versioned) {
+                if (endFrame == null) {
+                    endFrame = protocol.endOfRoomList(version, true);
+                }
+                return endFrame;
+            }
+            if (legacyEndFrame == null) {
+                legacyEndFrame = protocol.endOfRoomList(version, false);
+            }
+            return legacyEndFrame;
+        }
+
+        private byte[] entry(MultiCastServer.Room room) {
+            return protocol.roomEntry(room.getId(), room.getName(), room.getCreatorName(), room.getGroup());
+        }
+    }
+
+    private static class Change {
+        final long version;
+        // Encoded line per wire protocol
+        final byte[][] lines;
+
+        Change(long version, byte[][] lines) {
+            this.version = version;
+            this.lines = lines;
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package chatroom;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// Node-to-node TCP. Every node listens on its own address from chat.cluster.nodes and
+// keeps one outgoing connection to each peer, opened with a HELLO frame naming the
+// sender and redialled every second while down. Frames queue per peer and a sender
+// thread writes them, flushing once the queue runs dry; each incoming connection
+// has a reader thread that hands the frames to the receiver in order.
+final class TcpClusterBus implements ClusterBus {
+    private static final byte HELLO = 0;            // string node
+    private static final long REDIAL_MILLIS = 1000;
+    // Frames waiting for one peer; beyond this they are dropped, like for a peer that is down
+    private static final int MAX_QUEUED = Integer.getInteger("chat.cluster.queueFrames", 65536);
+    // History pages are the largest frames
+    private static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+    private static final Metrics.Counter framesSent = Metrics.counter("chat_cluster_frames_total",
+            "Frames passed between cluster nodes", "direction=\"sent\"");
+    private static final Metrics.Counter framesReceived = Metrics.counter("chat_cluster_frames_total",
+            "Frames passed between cluster nodes", "direction=\"received\"");
+    private static final Metrics.Counter framesDropped = Metrics.counter("chat_cluster_frames_total",
+            "Frames passed between cluster nodes", "direction=\"dropped\"");
+
+    private final String self;
+    private final Map<String, InetSocketAddress> addresses;
+    private final Map<String, Link> links = new LinkedHashMap<>();
+    // The connection each peer currently sends on
+    private final Map<String, Socket> inbound = new ConcurrentHashMap<>();
+    private volatile Receiver receiver;
+    private volatile boolean closed;
+    private ServerSocket serverSocket;
+
+    TcpClusterBus(String self, Map<String, InetSocketAddress> addresses) {
+        this.self = self;
+        this.addresses = new LinkedHashMap<>(addresses);
+        for (String node : addresses.keySet()) {
+            if (!node.equals(self)) {
+                links.put(node, new Link(node));
+            }
+        }
+    }
+
+    public String self() {
+        return self;
+    }
+
+    public List<String> nodes() {
+        return new ArrayList<>(addresses.keySet());
+    }
+
+    public void start(Receiver receiver) throws IOException {
+        this.receiver = receiver;
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(addresses.get(self));
+        startDaemon(this::acceptLoop, "cluster-accept");
+        for (Link link : links.values()) {
+            startDaemon(link::run, "cluster-out-" + link.node);
+        }
+        ChatLog.info("Cluster node " + self + " listening on " + addresses.get(self) + ", peers " + links.keySet());
+    }
+
+    public void send(String node, ByteBuffer frame) {
+        Link link = links.get(node);
+        if (link == null || !link.up || !link.queue.offer(frame.duplicate())) {
+            framesDropped.increment();
+        }
+    }
+
+    public boolean reachable(String node) {
+        Link link = links.get(node);
+        return link != null && link.up;
+    }
+
+    public void close() {
+        closed = true;
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+        }
+        for (Link link : links.values()) {
+            link.close();
+        }
+        for (Socket socket : inbound.values()) {
+            closeQuietly(socket);
+        }
+    }
+
+    private void acceptLoop() {
+        while (!closed) {
+            try {
+                Socket socket = serverSocket.accept();
+                startDaemon(() -> readLoop(socket), "cluster-in");
+            } catch (IOException e) {
+                if (!closed) {
+                    ChatLog.error("Cluster accept failed", e);
+                }
+            }
+        }
+    }
+
+    // The first frame names the peer; a newer connection from the same peer replaces
+    // this one, whose end is then not reported
+    private void readLoop(Socket socket) {
+        String peer = null;
+        try {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+            ByteBuffer hello = readFrame(in);
+            if (hello.get() != HELLO) {
+                throw new IOException("Cluster peer did not say hello");
+            }
+            peer = BinaryProtocol.readString(hello);
+            if (!links.containsKey(peer)) {
+                throw new IOException("Unknown cluster node " + peer);
+            }
+            Socket previous = inbound.put(peer, socket);
+            if (previous != null) {
+                closeQuietly(previous);
+            }
+            Thread.currentThread().setName("cluster-in-" + peer);
+            while (true) {
+                ByteBuffer frame = readFrame(in);
+                framesReceived.increment();
+                receiver.received(peer, frame);
+            }
+        } catch (EOFException e) {
+            // Peer closed the connection
+        } catch (IOException e) {
+            if (!closed && !socket.isClosed()) {
+                ChatLog.warn("Cluster connection from " + (peer != null ? peer : socket.getRemoteSocketAddress())
+                        + " failed: " + e.getMessage());
+            }
+        }
+        closeQuietly(socket);
+        if (peer != null && inbound.remove(peer, socket) && !closed) {
+            ChatLog.warn("Cluster node " + peer + " disconnected");
+            receiver.disconnected(peer);
+        }
+    }
+
+    private static ByteBuffer readFrame(DataInputStream in) throws IOException {
+        int length = 0;
+        int shift = 0;
+        int b;
+        do {
+            if (shift > 28) {
+                throw new IOException("Malformed cluster frame length");
+            }
+            b = in.readUnsignedByte();
+            length |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        if (length <= 0 || length > MAX_FRAME_LENGTH) {
+            throw new IOException("Bad cluster frame length " + length);
+        }
+        byte[] frame = new byte[length];
+        in.readFully(frame);
+        return ByteBuffer.wrap(frame);
+    }
+
+    private static void startDaemon(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+        }
+    }
+
+    // Outgoing connection to one peer
+    private final class Link {
+        final String node;
+        final BlockingQueue<ByteBuffer> queue = new ArrayBlockingQueue<>(MAX_QUEUED);
+        volatile boolean up;
+        private volatile Socket socket;
+
+        Link(String node) {
+            this.node = node;
+        }
+
+        void run() {
+            while (!closed) {
+                try (Socket socket = new Socket()) {
+                    this.socket = socket;
+                    socket.connect(addresses.get(node), (int) REDIAL_MILLIS);
+                    socket.setTcpNoDelay(true);
+                    OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+                    WritableByteChannel channel = Channels.newChannel(out);
+                    channel.write(BinaryProtocol.encode(HELLO, self));
+                    out.flush();
+                    up = true;
+                    ChatLog.info("Cluster link to " + node + " is up");
+                    receiver.connected(node);
+                    while (!closed) {
+                        ByteBuffer frame = queue.poll();
+                        if (frame == null) {
+                            out.flush();
+                            frame = queue.poll(REDIAL_MILLIS, TimeUnit.MILLISECONDS);
+                            if (frame == null) {
+                                continue;
+                            }
+                        }
+                        channel.write(frame);
+                        framesSent.increment();
+                    }
+                } catch (IOException e) {
+                    if (up) {
+                        ChatLog.warn("Cluster link to " + node + " is down: " + e.getMessage());
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                up = false;
+                queue.clear();
+                if (!closed) {
+                    try {
+                        Thread.sleep(REDIAL_MILLIS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        void close() {
+            Socket socket = this.socket;
+            if (socket != null) {
+                closeQuietly(socket);
+            }
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package chatroom;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+// The original newline-terminated text protocol, kept for older clients. A request
+// line may start with "@<id> " to tag it, the line ending its reply then starts the same.
+class TextProtocol implements WireProtocol {
+    // Fixed rather than the platform default, so every client and server agree
+    private static final Charset CHARSET = StandardCharsets.UTF_8;
+    private static final ByteBuffer PING = encodeLine("Ping");
+    private static final ByteBuffer PONG = encodeLine("Pong");
+
+    public int index() {
+        return 0;
+    }
+
+    public String name() {
+        return "text";
+    }
+
+    public boolean decode(ByteBuffer in, MultiCastServer.ClientHandler handler) throws ProtocolException {
+        int start = in.position();
+        int end = -1;
+        for (int i = start; i < in.limit(); i++) {
+            if (in.get(i) == '\n') {
+                end = i;
+                break;
+            }
+        }
+        if (end < 0) {
+            if (in.remaining() >= MAX_FRAME_LENGTH) {
+                throw new ProtocolException("Request line too long");
+            }
+            return false;
+        }
+
+        int lineEnd = end > start && in.get(end - 1) == '\r' ? end - 1 : end;
+        ByteBuffer line = in.duplicate();
+        line.limit(lineEnd);
+        String request = CHARSET.decode(line).toString();
+        in.position(end + 1);
+        if (WireProtocol.hasControlCharacter(request)) {
+            // A carriage return inside the line would end it early for text clients
+            handler.unknownCommand();
+            return true;
+        }
+
+        try {
+            if (request.startsWith("@")) {
+                int space = request.indexOf(' ');
+                handler.requestId = Long.parseLong(request.substring(1, space < 0 ? request.length() : space));
+                request = space < 0 ? "" : request.substring(space + 1);
+            }
+            handleRequest(request, handler);
+        } catch (NumberFormatException e) {
+            handler.unknownCommand();
+        } finally {
+            handler.requestId = 0;
+        }
+        return true;
+    }
+
+    private void handleRequest(String request, MultiCastServer.ClientHandler handler) {
+        if (request.startsWith("GetRooms")) {
+            // GetRooms <version> asks only for the changes since that version
+            String[] tokens = request.split(" ", 2);
+            handler.getRooms(tokens.length == 2 ? Long.parseLong(tokens[1]) : -1);
+        } else if (request.startsWith("CreateRoom")) {
+            String[] tokens = request.split(" ", 2);
+            if (tokens.length == 2) {
+                String roomName = tokens[1];
+                handler.createRoom(roomName);
+            }
+        } else if (request.startsWith("JoinRoom")) {
+            // JoinRoom <roomId> <roomName> <userName>, either name may have spaces
+            String[] tokens = request.split(" ", 3);
+            if (tokens.length == 3) {
+                handler.joinRoomNamed(Integer.parseInt(tokens[1]), tokens[2]);
+            }
+        } else if (request.startsWith("LeaveRoom")) {
+            // LeaveRoom <roomId> <userName>; older clients send the room's name instead
+            String[] tokens = request.split(" ", 3);
+            if (tokens.length == 3) {
+                String room = tokens[1];
+                String userName = tokens[2];
+                handler.leaveRoom(room, userName);
+            }
+        } else if (request.startsWith("SendMessage")) {
+            String[] tokens = request.split(" ", 3);
+            if (tokens.length == 3) {
+                handler.sendMessage(Integer.parseInt(tokens[1]), tokens[2]);
+            }
+        } else if (request.startsWith("GetHistory")) {
+            // GetHistory <roomId> <beforeSeq> <limit>, beforeSeq 0 asks for the newest page
+            String[] tokens = request.split(" ", 4);
+            if (tokens.length == 4) {
+                handler.getHistory(Integer.parseInt(tokens[1]), Long.parseLong(tokens[2]), Integer.parseInt(tokens[3]));
+            }
+        } else if (request.equals("Pong")) {
+            handler.pong();
+        } else if (request.equals("Ping")) {
+            handler.ping();
+        } else if (request.startsWith("Protocol ")) {
+            handler.switchProtocol(request.substring("Protocol ".length()));
+        } else {
+            handler.unknownCommand();
+        }
+    }
+
+    public ByteBuffer roomCreated(int roomId, String roomName, String creator, InetSocketAddress group) {
+        return encodeLine("RoomCreated " + roomId + " " + roomName + " " + creatorText(creator) + " " + groupText(group));
+    }
+
+    public ByteBuffer newRoom(int roomId, String roomName, String creator, InetSocketAddress group) {
+        return encodeLine("NewRoom " + roomId + " " + roomName + " " + creatorText(creator) + " " + groupText(group));
+    }
+
+    public ByteBuffer message(int roomId, String sender, String text) {
+        return encodeLine("Message " + roomId + " " + sender + ": " + text);
+    }
+
+    // History <roomId> <seq> <millis> <sender>: <text> per message, then EndOfHistory <roomId> <nextBeforeSeq>
+    public ByteBuffer history(int roomId, List<EventLog.MessageRecord> page, long nextBeforeSeq) {
+        StringBuilder lines = new StringBuilder();
+        for (EventLog.MessageRecord message : page) {
+            lines.append("History ").append(roomId).append(' ').append(message.lsn).append(' ').append(message.millis)
+                    .append(' ').append(message.sender).append(": ").append(message.text).append('\n');
+        }
+        lines.append("EndOfHistory ").append(roomId).append(' ').append(nextBeforeSeq);
+        return encodeLine(lines.toString());
+    }
+
+    public ByteBuffer roomListChanged() {
+        return encodeLine("RoomListChanged");
+    }
+
+    public ByteBuffer roomListReset() {
+        return encodeLine("RoomListReset");
+    }
+
+    public ByteBuffer endOfRoomList(long version, boolean versioned) {
+        return encodeLine(versioned ? "EndOfRoomList " + version : "EndOfRoomList");
+    }
+
+    public ByteBuffer unknownCommand() {
+        return encodeLine("UnknownCommand");
+    }
+
+    public ByteBuffer rateLimited(String command) {
+        return encodeLine("RateLimited " + command);
+    }
+
+    public ByteBuffer nodeUnavailable(String command) {
+        return encodeLine("NodeUnavailable " + command);
+    }
+
+    public ByteBuffer tagged(long requestId, ByteBuffer reply) {
+        if (requestId == 0) {
+            return reply;
+        }
+        ByteBuffer head = reply.duplicate();
+        int lastLine = head.position();
+        for (int i = head.limit() - 2; i >= head.position(); i--) {
+            if (head.get(i) == '\n') {
+                lastLine = i + 1;
+                break;
+            }
+        }
+        ByteBuffer tail = reply.duplicate();
+        tail.position(lastLine);
+        head.limit(lastLine);
+        byte[] tag = ("@" + requestId + " ").getBytes(CHARSET);
+        ByteBuffer out = ByteBuffer.allocate(reply.remaining() + tag.length);
+        out.put(head).put(tag).put(tail).flip();
+        return out.asReadOnlyBuffer();
+    }
+
+    public ByteBuffer ping() {
+        return PING;
+    }
+
+    public ByteBuffer pong() {
+        return PONG;
+    }
+
+    public byte[] roomEntry(int roomId, String roomName, String creator, InetSocketAddress group) {
+        return toBytes(encodeLine("Room " + roomId + " " + roomName + " " + creatorText(creator) + " " + groupText(group)));
+    }
+
+    public byte[] roomDeleted(int roomId) {
+        return toBytes(encodeLine("RoomDeleted " + roomId));
+    }
+
+    // Encodes one protocol line into a read-only buffer that can be shared between clients
+    static ByteBuffer encodeLine(String line) {
+        return CHARSET.encode(CharBuffer.wrap(line + "\n")).asReadOnlyBuffer();
+    }
+
+    // <address> <port>, or "- 0" for a room without a group
+    // Room lines take the fields after the name from the end of the line, which leaves
+    // the name free to contain spaces as long as the creator does not
+    private static String creatorText(String creator) {
+        return creator.replace(' ', '_');
+    }
+
+    private static String groupText(InetSocketAddress group) {
+        return group != null ? group.getAddress().getHostAddress() + " " + group.getPort() : "- 0";
+    }
+
+    static byte[] toBytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,77 @@
+package chatroom;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+// Hashed timing wheel: one thread steps through the slots a tick at a time and runs the
+// tasks due in that slot, so thousands of connection deadlines cost one thread and a
+// queue insert each instead of a timer thread or a heap entry per connection. Tasks
+// further out than one turn of the wheel sit in their slot for the extra rounds.
+// Tasks run on the wheel thread, never early and at most a tick late; they must not block.
+final class TimerWheel {
+    private final long tickNanos;
+    private final long startNanos = System.nanoTime();
+    // Only touched by the wheel thread
+    private final ArrayDeque<Timeout>[] slots;
+    private long tick;
+    // Scheduled from any thread, moved into their slots on the next tick
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    TimerWheel(String name, long tickNanos, int slotCount) {
+        this.tickNanos = tickNanos;
+        this.slots = new ArrayDeque[slotCount];
+        for (int i = 0; i < slotCount; i++) {
+            slots[i] = new ArrayDeque<>();
+        }
+        Thread thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Runs the task on the wheel thread once delayNanos have passed; may be called from any thread
+    void schedule(Runnable task, long delayNanos) {
+        added.add(new Timeout(System.nanoTime() + Math.max(0, delayNanos), task));
+    }
+
+    private void run() {
+        while (true) {
+            long tickEnd = startNanos + (tick + 1) * tickNanos;
+            long wait;
+            while ((wait = tickEnd - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            Timeout timeout;
+            while ((timeout = added.poll()) != null) {
+                // Never behind the current tick, a late insert runs now
+                timeout.dueTick = Math.max((timeout.deadline - startNanos) / tickNanos, tick);
+                slots[(int) (timeout.dueTick % slots.length)].add(timeout);
+            }
+            for (Iterator<Timeout> due = slots[(int) (tick % slots.length)].iterator(); due.hasNext(); ) {
+                timeout = due.next();
+                if (timeout.dueTick <= tick) {
+                    due.remove();
+                    try {
+                        timeout.task.run();
+                    } catch (RuntimeException e) {
+                        // One failing task must not stop the others
+                        ChatLog.error("Timer task failed", e);
+                    }
+                }
+            }
+            tick++;
+        }
+    }
+
+    private static final class Timeout {
+        final long deadline;
+        final Runnable task;
+        long dueTick;
+
+        Timeout(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package chatroom;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Lock-free token bucket kept as a single timestamp: the time at which the bucket would
+// be full again (the generic cell rate algorithm). Taking n tokens pushes it n token
+// intervals further; a request that would push it more than burst intervals past now
+// is refused. One CAS per check and no refill thread, so it is cheap enough to charge
+// every command, and shared buckets such as a room's stay correct under contention.
+final class TokenBucket {
+    final Limit limit;
+    private final AtomicLong fullAt;
+
+    private TokenBucket(Limit limit) {
+        this.limit = limit;
+        // Starts full
+        this.fullAt = new AtomicLong(System.nanoTime());
+    }
+
+    boolean tryAcquire(long nowNanos) {
+        return tryAcquire(nowNanos, 1);
+    }
+
+    // More tokens than the burst are charged as a whole burst, so a big cost waits for
+    // a full bucket instead of never passing
+    boolean tryAcquire(long nowNanos, long tokens) {
+        long cost = Math.min(tokens, limit.burst) * limit.nanosPerToken;
+        while (true) {
+            long current = fullAt.get();
+            long next = (current - nowNanos > 0 ? current : nowNanos) + cost;
+            if (next - nowNanos > limit.burstNanos) {
+                limit.refused.increment();
+                return false;
+            }
+            if (fullAt.compareAndSet(current, next)) {
+                return true;
+            }
+        }
+    }
+
+    // Gives back tokens taken by tryAcquire for a request that was then refused elsewhere.
+    // A bucket pushed back past full simply counts as full.
+    void refund(long tokens) {
+        fullAt.addAndGet(-Math.min(tokens, limit.burst) * limit.nanosPerToken);
+    }
+
+    // A configured rate and burst, from which the buckets are made
+    //   -Dchat.limit.<name>.perSecond=<rate> -Dchat.limit.<name>.burst=<tokens>
+    // A rate of 0 turns the limit off.
+    static final class Limit {
+        final String name;
+        final long burst;
+        private final long nanosPerToken;
+        private final long burstNanos;
+        private final Metrics.Counter refused;
+
+        Limit(String name, double perSecond, long burst) {
+            this.name = name;
+            this.burst = Math.max(1, burst);
+            this.nanosPerToken = perSecond > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / perSecond) : 0;
+            this.burstNanos = this.burst * nanosPerToken;
+            this.refused = Metrics.counter("chat_rate_limited_total", "Requests refused by a rate limit",
+                    "limit=\"" + name + "\"");
+        }
+
+        static Limit fromProperties(String name, double perSecond, long burst) {
+            return new Limit(name,
+                    Double.parseDouble(System.getProperty("chat.limit." + name + ".perSecond", String.valueOf(perSecond))),
+                    Long.getLong("chat.limit." + name + ".burst", burst));
+        }
+
+        // Null when the limit is off
+        TokenBucket newBucket() {
+            return nanosPerToken > 0 ? new TokenBucket(this) : null;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package chatroom;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+// Encoding spoken on one client connection. Every connection starts on TEXT;
+// a client sends "Protocol binary" to switch to BINARY framing. A client may tag a
+// request with a non-zero id; the last line or frame of the reply then carries the
+// same id, so requests can overlap on one connection and still be told apart.
+interface WireProtocol {
+    WireProtocol TEXT = new TextProtocol();
+    WireProtocol BINARY = new BinaryProtocol();
+    // Indexed by index(), sizes the per-protocol frame caches
+    WireProtocol[] ALL = { TEXT, BINARY };
+
+    // Largest request frame a client may send
+    int MAX_FRAME_LENGTH = 64 * 1024;
+
+    // Slot of this protocol in per-protocol caches
+    int index();
+
+    String name();
+
+    // Decodes one complete request from in and dispatches it to the handler.
+    // Returns false, leaving in untouched, when in does not hold a whole frame yet.
+    boolean decode(ByteBuffer in, MultiCastServer.ClientHandler handler) throws ProtocolException;
+
+    // Room announcements carry the multicast group the server allocated for the room
+    ByteBuffer roomCreated(int roomId, String roomName, String creator, InetSocketAddress group);
+
+    ByteBuffer newRoom(int roomId, String roomName, String creator, InetSocketAddress group);
+
+    ByteBuffer message(int roomId, String sender, String text);
+
+    // A GetHistory page: the messages oldest first, then the end marker carrying the
+    // seq to ask before for the next older page, 0 when there is none
+    ByteBuffer history(int roomId, List<EventLog.MessageRecord> page, long nextBeforeSeq);
+
+    ByteBuffer roomListChanged();
+
+    ByteBuffer roomListReset();
+
+    // versioned is false for the text protocol's legacy bare EndOfRoomList
+    ByteBuffer endOfRoomList(long version, boolean versioned);
+
+    ByteBuffer unknownCommand();
+
+    // The named command was refused by a rate limit and not carried out
+    ByteBuffer rateLimited(String command);
+
+    // The named command went to another cluster node, which left before answering
+    ByteBuffer nodeUnavailable(String command);
+
+    // The reply with its last line or frame tagged as answering requestId; 0 leaves it as is
+    ByteBuffer tagged(long requestId, ByteBuffer reply);
+
+    // Heartbeat: the server pings a connection that has gone quiet and expects a Pong
+    // back; a client may ping the server the same way
+    ByteBuffer ping();
+
+    ByteBuffer pong();
+
+    // Pieces of the room list, concatenated by RoomRegistry
+    byte[] roomEntry(int roomId, String roomName, String creator, InetSocketAddress group);
+
+    byte[] roomDeleted(int roomId);
+
+    // Names and text are copied into other clients' text protocol lines, where a line
+    // break or carriage return would let one client forge whole lines for the others
+    static boolean hasControlCharacter(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x20 || c == 0x7F) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static WireProtocol forName(String name) {
+        if (name.equals(TEXT.name())) {
+            return TEXT;
+        }
+        if (name.equals(BINARY.name())) {
+            return BINARY;
+        }
+        return null;
+    }
+
+    // Malformed or oversized request, the connection is closed
+    class ProtocolException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        ProtocolException(String message) {
+            super(message);
+        }
+    }
+}
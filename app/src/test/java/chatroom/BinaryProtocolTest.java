@@ -0,0 +1,73 @@
+package chatroom;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+import static chatroom.TestClient.await;
+import static org.junit.jupiter.api.Assertions.*;
+
+// Binary frames as a client sends them, and the frames the server encodes for it
+class BinaryProtocolTest {
+    private MultiCastServer.Node node;
+    private TestClient client;
+
+    @BeforeEach
+    void binaryClient() throws Exception {
+        node = new MultiCastServer.Node(new RoomRegistry(
+                new MulticastGroupPool(InetAddress.getByName("239.255.61.0"), 16, 5000)));
+        client = new TestClient(node, "client");
+        client.send("Protocol binary");
+        assertTrue(await(() -> client.find("ProtocolAccepted binary") != null));
+    }
+
+    @Test
+    void namesWithSpacesNeedNoEscaping() throws Exception {
+        client.sendFrame(BinaryProtocol.encode(BinaryProtocol.CREATE_ROOM, "my big room"));
+        assertTrue(await(() -> node.rooms.getByName("my big room") != null));
+        int id = node.rooms.getByName("my big room").getId();
+        client.sendFrame(BinaryProtocol.encode(BinaryProtocol.JOIN_ROOM, id, "Nguyen Van"));
+        assertEquals("Nguyen Van", client.getUserName());
+        assertEquals(1, node.rooms.getById(id).getMemberCount());
+    }
+
+    @Test
+    void encodesRepliesFieldByField() throws Exception {
+        InetSocketAddress group = new InetSocketAddress(InetAddress.getByName("239.255.61.7"), 5000);
+        ByteBuffer frame = WireProtocol.BINARY.roomCreated(7, "my big room", "Nguyen Van", group);
+        assertEquals(frame.remaining() - 1, BinaryProtocol.readVarLong(frame));
+        assertEquals(BinaryProtocol.ROOM_CREATED, frame.get());
+        assertEquals(7, BinaryProtocol.readVarInt(frame));
+        assertEquals("my big room", BinaryProtocol.readString(frame));
+        assertEquals("Nguyen Van", BinaryProtocol.readString(frame));
+        byte[] address = new byte[BinaryProtocol.readVarInt(frame)];
+        frame.get(address);
+        assertEquals(group.getAddress(), InetAddress.getByAddress(address));
+        assertEquals(5000, BinaryProtocol.readVarInt(frame));
+        assertFalse(frame.hasRemaining());
+    }
+
+    @Test
+    void lineBreakInAStringIsAProtocolError() throws Exception {
+        int id = node.rooms.create("lobby", "someone").getId();
+        client.sendFrame(BinaryProtocol.encode(BinaryProtocol.JOIN_ROOM, id, "alice"));
+        // Would forge a line for every text client in the room
+        ByteBuffer forged = BinaryProtocol.encode(BinaryProtocol.SEND_MESSAGE, id, "hi\n@1 RoomCreated 9 x");
+        assertThrows(WireProtocol.ProtocolException.class, () -> client.sendFrame(forged));
+    }
+
+    @Test
+    void stringLongerThanTheFrameIsAProtocolError() {
+        ByteBuffer frame = ByteBuffer.wrap(new byte[] { 3, BinaryProtocol.CREATE_ROOM, 9, 'x' });
+        assertThrows(WireProtocol.ProtocolException.class, () -> client.sendFrame(frame));
+    }
+
+    @Test
+    void missingFieldIsAProtocolError() {
+        ByteBuffer frame = ByteBuffer.wrap(new byte[] { 1, BinaryProtocol.JOIN_ROOM });
+        assertThrows(WireProtocol.ProtocolException.class, () -> client.sendFrame(frame));
+    }
+}
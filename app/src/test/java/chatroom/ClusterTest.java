@@ -0,0 +1,208 @@
+package chatroom;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.MethodOrderer;
+import org.junit.jupiter.api.Order;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.TestMethodOrder;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import static chatroom.TestClient.await;
+import static org.junit.jupiter.api.Assertions.*;
+
+// Runs three cluster nodes in one JVM on a LocalClusterBus, with in-memory connections
+// speaking the text protocol, and checks that a room owned by any node can be listed,
+// joined, chatted in and paged back from every node; how rooms spread over the nodes;
+// that a node leaving takes its rooms with it and gets no new ones, and that a request
+// it never answered is failed rather than left hanging. The steps build on each other
+// and run in order.
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+class ClusterTest {
+    private static final String[] NAMES = { "a", "b", "c" };
+    private static final int ROOMS = 300;
+
+    private final MultiCastServer.Node[] nodes = new MultiCastServer.Node[NAMES.length];
+    private final ClusterBus[] buses = new ClusterBus[NAMES.length];
+    private final TestClient[] makers = new TestClient[NAMES.length];
+    private TestClient alice;
+    private TestClient bob;
+    private TestClient carol;
+
+    @BeforeAll
+    void startNodes() throws IOException {
+        LocalClusterBus.Network network = new LocalClusterBus.Network(NAMES);
+        for (int i = 0; i < NAMES.length; i++) {
+            // Each node hands out groups from its own range
+            MulticastGroupPool groups = new MulticastGroupPool(InetAddress.getByName("239.255." + (50 + i) + ".0"), 256, 5000);
+            nodes[i] = new MultiCastServer.Node(new RoomRegistry(groups));
+            buses[i] = i == 2 ? new HangingBus(network.bus(NAMES[i])) : network.bus(NAMES[i]);
+            new Cluster(nodes[i], buses[i]).start();
+        }
+        alice = new TestClient(nodes[0], "alice");
+        bob = new TestClient(nodes[1], "bob");
+        carol = new TestClient(nodes[2], "carol");
+        for (int i = 0; i < NAMES.length; i++) {
+            makers[i] = new TestClient(nodes[i], "maker-" + NAMES[i]);
+        }
+    }
+
+    // One room, a member on every node
+    @Test
+    @Order(1)
+    void roomIsUsableFromEveryNode() throws Exception {
+        alice.send("CreateRoom lobby");
+        assertTrue(await(() -> alice.find("RoomCreated ") != null), "room created");
+        int lobby = Integer.parseInt(alice.find("RoomCreated ").split(" ")[1]);
+        assertTrue(await(() -> Arrays.stream(nodes).allMatch(n -> n.rooms.getById(lobby) != null)),
+                "room listed on every node");
+        alice.send("JoinRoom " + lobby + " lobby alice");
+        bob.send("JoinRoom " + lobby + " lobby bob");
+        carol.send("JoinRoom " + lobby + " lobby carol");
+        MultiCastServer.Room owned = nodes[indexOf(owner(lobby))].rooms.getById(lobby);
+        await(() -> owned.getMemberCount() + owned.remoteNodes().length >= 3);
+
+        alice.send("SendMessage " + lobby + " hello from a");
+        carol.send("SendMessage " + lobby + " hello from c");
+        for (TestClient client : List.of(alice, bob, carol)) {
+            assertTrue(await(() -> client.find("Message " + lobby + " alice: hello from a") != null
+                    && client.find("Message " + lobby + " carol: hello from c") != null),
+                    client.name + " got both messages");
+        }
+        bob.send("GetHistory " + lobby + " 0 10");
+        assertTrue(await(() -> bob.find("EndOfHistory " + lobby + " 0") != null), "history from another node");
+        assertEquals(2, bob.count("History " + lobby + " "));
+    }
+
+    // Many rooms, created from every node
+    @Test
+    @Order(2)
+    void roomsSpreadOverTheNodes() throws Exception {
+        for (int i = 0; i < ROOMS; i++) {
+            makers[i % makers.length].send("CreateRoom room" + i);
+        }
+        assertTrue(await(() -> Arrays.stream(makers).mapToInt(maker -> maker.count("RoomCreated ")).sum() == ROOMS),
+                ROOMS + " rooms created");
+        assertTrue(await(() -> Arrays.stream(nodes).allMatch(n -> n.rooms.size() == ROOMS + 1)),
+                "every node lists every room");
+        for (int i = 0; i < NAMES.length; i++) {
+            final int node = i;
+            long owns = nodes[0].rooms.all().stream().filter(room -> nodes[node].rooms.owns(room.getId())).count();
+            assertTrue(owns > 0, NAMES[i] + " owns some of the rooms");
+        }
+        for (TestClient client : List.of(alice, bob, carol)) {
+            client.send("GetRooms");
+            assertTrue(await(() -> client.find("EndOfRoomList") != null), client.name + " GetRooms answered");
+            assertEquals(ROOMS + 1, client.count("Room "), client.name + " GetRooms lists every room");
+        }
+    }
+
+    // Node c hangs, so alice's request times out; with another request on it c goes
+    // away, the others drop its rooms and its members of theirs, and alice hears that
+    // request will not be answered either
+    @Test
+    @Order(3)
+    void lostNodeFailsRequestsAndTakesItsRooms() throws Exception {
+        ((HangingBus) buses[2]).hung = true;
+        int lost = nodes[0].rooms.all().stream().filter(room -> owner(room.getId()).equals("c"))
+                .findAny().orElseThrow().getId();
+        alice.send("@6 GetHistory " + lost + " 0 10");
+        assertTrue(await(() -> alice.find("@6 NodeUnavailable GetHistory") != null), "request to the hung node timed out");
+        alice.send("@7 GetHistory " + lost + " 0 10");
+        buses[2].close();
+        assertTrue(await(() -> alice.find("@7 NodeUnavailable GetHistory") != null), "request to the lost node failed");
+        assertTrue(await(() -> {
+            for (int i = 0; i < 2; i++) {
+                for (MultiCastServer.Room room : nodes[i].rooms.all()) {
+                    if (owner(room.getId()).equals("c")) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }), "rooms of the lost node dropped");
+
+        // New rooms go to the nodes still there
+        int created = makers[0].count("RoomCreated ");
+        for (int i = 0; i < 30; i++) {
+            makers[0].send("CreateRoom after" + i);
+        }
+        assertTrue(await(() -> makers[0].count("RoomCreated ") == created + 30), "rooms created without the lost node");
+    }
+
+    // The rest leave, which removes every remaining room on both nodes
+    @Test
+    @Order(4)
+    void emptyRoomsAreRemoved() throws Exception {
+        for (TestClient client : List.of(alice, bob, makers[0], makers[1])) {
+            client.disconnected();
+        }
+        assertTrue(await(() -> nodes[0].rooms.size() == 0 && nodes[1].rooms.size() == 0), "rooms removed once empty");
+    }
+
+    private String owner(int roomId) {
+        for (int i = 0; i < nodes.length; i++) {
+            if (nodes[i].rooms.owns(roomId)) {
+                return NAMES[i];
+            }
+        }
+        return null;
+    }
+
+    private static int indexOf(String name) {
+        return Arrays.asList(NAMES).indexOf(name);
+    }
+
+    // Stops handling frames from the other nodes once hung, like a node stuck in a pause
+    private static class HangingBus implements ClusterBus {
+        private final ClusterBus bus;
+        volatile boolean hung;
+
+        HangingBus(ClusterBus bus) {
+            this.bus = bus;
+        }
+
+        public String self() {
+            return bus.self();
+        }
+
+        public List<String> nodes() {
+            return bus.nodes();
+        }
+
+        public void start(Receiver receiver) throws IOException {
+            bus.start(new Receiver() {
+                public void received(String from, ByteBuffer frame) {
+                    if (!hung) {
+                        receiver.received(from, frame);
+                    }
+                }
+
+                public void connected(String node) {
+                    receiver.connected(node);
+                }
+
+                public void disconnected(String node) {
+                    receiver.disconnected(node);
+                }
+            });
+        }
+
+        public void send(String node, ByteBuffer frame) {
+            bus.send(node, frame);
+        }
+
+        public boolean reachable(String node) {
+            return bus.reachable(node);
+        }
+
+        public void close() throws IOException {
+            bus.close();
+        }
+    }
+}
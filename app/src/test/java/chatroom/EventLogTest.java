@@ -0,0 +1,122 @@
+package chatroom;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Recovery after a clean close, a torn last write and segment rolls with snapshots
+class EventLogTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void recoversRoomsAndMessages() throws IOException {
+        EventLog log = EventLog.open(dir);
+        log.roomCreated(0, "phòng chat", "Nguyen Van");
+        log.roomCreated(1, "gone", "bob");
+        long first = log.message(0, 1000, "Nguyen Van", "xin chào");
+        long second = log.message(0, 2000, "bob", "hi");
+        log.roomDeleted(1);
+        log.close();
+
+        EventLog recovered = EventLog.open(dir);
+        try {
+            assertEquals(List.of("0 phòng chat Nguyen Van"), describe(recovered.rooms()));
+            // Ids are never reused, including the deleted room's
+            assertEquals(2, recovered.nextRoomId());
+            assertEquals(log.lastLsn(), recovered.lastLsn());
+
+            List<EventLog.MessageRecord> page = new ArrayList<>();
+            assertFalse(recovered.history(0, Long.MAX_VALUE, 10, page));
+            assertEquals(2, page.size());
+            assertEquals(first, page.get(0).lsn);
+            assertEquals("xin chào", page.get(0).text);
+            assertEquals(second, page.get(1).lsn);
+            assertEquals("bob", page.get(1).sender);
+        } finally {
+            recovered.close();
+        }
+    }
+
+    @Test
+    void tornLastRecordIsDropped() throws IOException {
+        EventLog log = EventLog.open(dir);
+        log.roomCreated(0, "lobby", "alice");
+        log.message(0, 1000, "alice", "kept");
+        log.message(0, 2000, "alice", "torn");
+        log.close();
+        Path newest;
+        try (Stream<Path> files = Files.list(dir)) {
+            newest = files.filter(path -> path.toString().endsWith(".log")).sorted().reduce((a, b) -> b).orElseThrow();
+        }
+        try (FileChannel channel = FileChannel.open(newest, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 3);
+        }
+
+        EventLog recovered = EventLog.open(dir);
+        try {
+            assertEquals(List.of("0 lobby alice"), describe(recovered.rooms()));
+            assertEquals(log.lastLsn() - 1, recovered.lastLsn());
+            List<EventLog.MessageRecord> page = new ArrayList<>();
+            recovered.history(0, Long.MAX_VALUE, 10, page);
+            assertEquals(List.of("kept"), page.stream().map(message -> message.text).collect(Collectors.toList()));
+        } finally {
+            recovered.close();
+        }
+    }
+
+    @Test
+    void recoversFromASnapshotAfterSegmentRolls() throws Exception {
+        System.setProperty("chat.wal.segmentBytes", "1024");
+        System.setProperty("chat.wal.flushMillis", "0");
+        EventLog log;
+        try {
+            log = EventLog.open(dir);
+        } finally {
+            System.clearProperty("chat.wal.segmentBytes");
+            System.clearProperty("chat.wal.flushMillis");
+        }
+        List<String> expected = new ArrayList<>();
+        for (int id = 0; id < 200; id++) {
+            log.roomCreated(id, "room " + id, "creator " + id);
+            log.message(id, id, "creator " + id, "message in room " + id);
+            if (id % 3 == 0) {
+                log.roomDeleted(id);
+            } else {
+                expected.add(id + " room " + id + " creator " + id);
+            }
+            if (id % 20 == 0) {
+                // Several commits, each of which fills a segment
+                Thread.sleep(10);
+            }
+        }
+        log.close();
+        try (Stream<Path> files = Files.list(dir)) {
+            assertTrue(files.anyMatch(path -> path.getFileName().toString().startsWith("snapshot-")), "snapshot written");
+        }
+
+        EventLog recovered = EventLog.open(dir);
+        try {
+            assertEquals(expected, describe(recovered.rooms()));
+            assertEquals(200, recovered.nextRoomId());
+            assertEquals(log.lastLsn(), recovered.lastLsn());
+        } finally {
+            recovered.close();
+        }
+    }
+
+    private static List<String> describe(List<EventLog.RoomRecord> rooms) {
+        return rooms.stream().map(room -> room.id + " " + room.name + " " + room.creator).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,101 @@
+package chatroom;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HistoryCacheTest {
+    private final HistoryCache cache = new HistoryCache(3, 1 << 20);
+
+    @Test
+    void newRoomTailIsTheWholeHistory() {
+        cache.roomCreated(1);
+        add(1, 1, 2);
+        List<EventLog.MessageRecord> page = new ArrayList<>();
+        assertTrue(cache.read(1, Long.MAX_VALUE, 10, page));
+        assertEquals(List.of(1L, 2L), lsns(page));
+    }
+
+    @Test
+    void tailKeepsTheNewestMessages() {
+        cache.roomCreated(1);
+        add(1, 1, 2, 3, 4, 5);
+        List<EventLog.MessageRecord> page = new ArrayList<>();
+        // The oldest two fell out, so the log may hold more
+        assertFalse(cache.read(1, Long.MAX_VALUE, 10, page));
+        assertEquals(List.of(3L, 4L, 5L), lsns(page));
+    }
+
+    @Test
+    void pagesEndBeforeTheGivenSeq() {
+        cache.roomCreated(1);
+        add(1, 1, 2, 3);
+        List<EventLog.MessageRecord> page = new ArrayList<>();
+        assertTrue(cache.read(1, 3, 1, page));
+        assertEquals(List.of(2L), lsns(page));
+    }
+
+    @Test
+    void lateMessageIsSortedIn() {
+        cache.roomCreated(1);
+        add(1, 2, 1);
+        List<EventLog.MessageRecord> page = new ArrayList<>();
+        cache.read(1, Long.MAX_VALUE, 10, page);
+        assertEquals(List.of(1L, 2L), lsns(page));
+    }
+
+    @Test
+    void olderMessagesFromTheLogGoInFront() {
+        // Not cached, so its tail starts out incomplete
+        add(1, 10, 11);
+        List<EventLog.MessageRecord> page = new ArrayList<>();
+        assertFalse(cache.read(1, Long.MAX_VALUE, 10, page));
+
+        cache.prepend(1, 10, List.of(message(9)), true);
+        page.clear();
+        assertTrue(cache.read(1, Long.MAX_VALUE, 10, page));
+        assertEquals(List.of(9L, 10L, 11L), lsns(page));
+    }
+
+    @Test
+    void evictsTheLeastRecentlyUsedRoom() {
+        HistoryCache small = new HistoryCache(100, 1000);
+        small.roomCreated(1);
+        small.roomCreated(2);
+        for (long lsn = 1; lsn <= 5; lsn++) {
+            small.add(1, message(lsn));
+        }
+        long oneRoom = small.bytes();
+        for (long lsn = 6; lsn <= 10; lsn++) {
+            small.add(2, message(lsn));
+        }
+        assertTrue(small.bytes() <= 1000);
+        assertFalse(small.read(1, Long.MAX_VALUE, 10, new ArrayList<>()), "room 1 evicted");
+        assertEquals(oneRoom, small.bytes());
+
+        small.roomDeleted(2);
+        assertEquals(0, small.bytes());
+    }
+
+    private void add(int roomId, long... lsns) {
+        for (long lsn : lsns) {
+            cache.add(roomId, message(lsn));
+        }
+    }
+
+    private static EventLog.MessageRecord message(long lsn) {
+        // Same size for every message, so byte counts compare exactly
+        return new EventLog.MessageRecord(lsn, lsn * 1000, "sender", "text");
+    }
+
+    private static List<Long> lsns(List<EventLog.MessageRecord> page) {
+        List<Long> lsns = new ArrayList<>();
+        for (EventLog.MessageRecord message : page) {
+            lsns.add(message.lsn);
+        }
+        return lsns;
+    }
+}
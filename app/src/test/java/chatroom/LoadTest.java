@@ -0,0 +1,135 @@
+package chatroom;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Opens many idle connections against an in-process server, checks each one is
+// served, then measures accept rate, memory per connection and GetRooms round-trip
+// latency. mvn test runs a small one; run bigger ones once per mode and compare:
+//   mvn -B test -pl app -Dtest=LoadTest -Dchat.loadtest.connections=5000 -Dchat.loadtest.samples=2000
+//   mvn -B test -pl app -Dtest=LoadTest -Dchat.loadtest.connections=50000 -Dchat.server.mode=virtual
+//   mvn -B test -pl app -Dtest=LoadTest -Dchat.loadtest.connections=50000 -Dchat.server.mode=nio
+// Client sockets live in the same JVM, so their cost is included in all runs.
+// Soaks of 50k connections need a raised open file limit (ulimit -n).
+class LoadTest {
+    private static final String HOST = "127.0.0.1";
+
+    @Test
+    void idleConnectionsAreServed() throws Exception {
+        int connections = Integer.getInteger("chat.loadtest.connections", 200);
+        int samples = Integer.getInteger("chat.loadtest.samples", 200);
+        String mode = System.getProperty("chat.server.mode", "thread");
+        int port = freePort();
+        System.setProperty("chat.server.port", String.valueOf(port));
+
+        Thread server = new Thread(() -> MultiCastServer.main(new String[0]), "server");
+        server.setDaemon(true);
+        server.start();
+        waitForServer(port);
+
+        long rssBefore = residentMemory();
+        int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+
+        List<Socket> sockets = new ArrayList<>();
+        List<BufferedReader> readers = new ArrayList<>();
+        List<PrintWriter> writers = new ArrayList<>();
+        long acceptStart = System.nanoTime();
+        for (int i = 0; i < connections; i++) {
+            Socket socket = new Socket(HOST, port);
+            sockets.add(socket);
+            readers.add(new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8)));
+            writers.add(new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true));
+        }
+        // Make sure every connection has been picked up by the server
+        for (int i = 0; i < connections; i++) {
+            assertTrue(roundTrip(readers.get(i), writers.get(i)), "connection " + i + " answered GetRooms");
+        }
+        long acceptNanos = System.nanoTime() - acceptStart;
+        System.gc();
+        Thread.sleep(1000);
+
+        long rssAfter = residentMemory();
+        int threadsAfter = ManagementFactory.getThreadMXBean().getThreadCount();
+        long bytesPerConnection = Math.max(1, (rssAfter - rssBefore) / connections);
+
+        Random random = new Random(42);
+        long[] latencies = new long[samples];
+        for (int i = 0; i < samples; i++) {
+            int index = random.nextInt(connections);
+            long start = System.nanoTime();
+            assertTrue(roundTrip(readers.get(index), writers.get(index)), "connection " + index + " answered GetRooms");
+            latencies[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(latencies);
+
+        System.out.println("mode=" + mode + " connections=" + connections);
+        System.out.println("accept rate: " + connections * 1_000_000_000L / Math.max(1, acceptNanos) + " connections/s");
+        System.out.println("threads: " + threadsBefore + " -> " + threadsAfter);
+        System.out.println("rss: " + rssBefore / 1024 + "kB -> " + rssAfter / 1024 + "kB, ~"
+                + bytesPerConnection + " bytes/connection, ~"
+                + (1L << 30) / bytesPerConnection + " connections/GB");
+        System.out.println("GetRooms latency us: p50=" + percentile(latencies, 0.50) / 1000
+                + " p99=" + percentile(latencies, 0.99) / 1000
+                + " max=" + latencies[samples - 1] / 1000);
+
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+    }
+
+    // False if the connection ended before the list did
+    private static boolean roundTrip(BufferedReader in, PrintWriter out) throws IOException {
+        out.println("GetRooms");
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.startsWith("EndOfRoomList")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void waitForServer(int port) throws InterruptedException {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            try {
+                new Socket(HOST, port).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        throw new IllegalStateException("Server did not start on port " + port);
+    }
+
+    static long percentile(long[] sorted, double p) {
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))];
+    }
+
+    // Resident set size from /proc on Linux, heap usage elsewhere
+    static long residentMemory() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                }
+            }
+        } catch (IOException e) {
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,136 @@
+package chatroom;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+// Checks loss repair of ReliableMulticast on loopback: one sender and N receivers in a
+// group, every receiver dropping the given share of datagrams. Every receiver has to get
+// every message in order; reports how many NACKs and retransmits that took.
+//   mvn -B test -pl app -Dtest=MulticastLossTest -Dchat.multicast.test.receivers=5 -Dchat.multicast.test.messages=100000
+class MulticastLossTest {
+    private static final InetSocketAddress GROUP = new InetSocketAddress("239.255.77.1", 5077);
+    private static final int ROOM_ID = 1;
+
+    @BeforeAll
+    static void raiseRepairBudget() {
+        // All receivers NACK from the same loopback address and share one repair budget,
+        // which is sized for a single member receiving join and leave notices
+        System.getProperties().putIfAbsent("chat.limit.multicastRepair.perSecond", "100000");
+    }
+
+    @Test
+    void everyReceiverGetsEveryMessageInOrder() throws Exception {
+        int receiverCount = Integer.getInteger("chat.multicast.test.receivers", 3);
+        int messages = Integer.getInteger("chat.multicast.test.messages", 20000);
+        double dropRate = Double.parseDouble(System.getProperty("chat.multicast.test.dropRate", "0.1"));
+        NetworkInterface loopback = NetworkInterface.getByInetAddress(InetAddress.getLoopbackAddress());
+
+        Receiver[] receivers = new Receiver[receiverCount];
+        for (int i = 0; i < receiverCount; i++) {
+            receivers[i] = new Receiver(loopback, dropRate);
+        }
+        // The sender drops nothing itself, only its receivers lose datagrams
+        Receiver sender = new Receiver(loopback, 0);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            sender.multicast.send("message " + i);
+            if (i % 16 == 15) {
+                // About 16k messages a second, a busy room rather than a flood
+                // that outruns the sender's repair ring
+                TimeUnit.MILLISECONDS.sleep(1);
+            }
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (System.nanoTime() < deadline && !allDone(receivers, messages)) {
+            TimeUnit.MILLISECONDS.sleep(20);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("%d messages, drop rate %.2f, %.2f s%n", messages, dropRate, seconds);
+        System.out.printf("sender: datagrams=%d (%.1f messages/datagram) retransmitted=%d repairsRefused=%d%n",
+                sender.multicast.datagramsSent.sum(),
+                (double) sender.multicast.messagesSent.sum() / Math.max(1, sender.multicast.datagramsSent.sum()),
+                sender.multicast.retransmitted.sum(), sender.multicast.repairsRefused.sum());
+        for (int i = 0; i < receiverCount; i++) {
+            Receiver r = receivers[i];
+            System.out.printf("receiver %d: delivered=%d outOfOrder=%d lost=%d dropped=%d nacks=%d suppressed=%d duplicates=%d malformed=%d%n",
+                    i, r.delivered, r.outOfOrder, r.multicast.lost.sum(), r.multicast.dropsInjected.sum(),
+                    r.multicast.nacksSent.sum(), r.multicast.nacksSuppressed.sum(), r.multicast.duplicates.sum(), r.multicast.malformed.sum());
+        }
+        for (Receiver r : receivers) {
+            r.close();
+        }
+        sender.close();
+        for (int i = 0; i < receiverCount; i++) {
+            assertEquals(messages, receivers[i].delivered, "receiver " + i + " delivered");
+            assertEquals(0, receivers[i].outOfOrder, "receiver " + i + " out of order");
+        }
+    }
+
+    private static boolean allDone(Receiver[] receivers, int messages) {
+        for (Receiver r : receivers) {
+            if (r.delivered + r.multicast.lost.sum() < messages) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static class Receiver implements ReliableMulticast.Listener {
+        final MulticastSocket socket;
+        final ReliableMulticast multicast;
+        volatile int delivered;
+        int outOfOrder;
+        private int last = -1;
+
+        Receiver(NetworkInterface loopback, double dropRate) throws Exception {
+            socket = new MulticastSocket(null);
+            socket.setReuseAddress(true);
+            socket.bind(new InetSocketAddress(GROUP.getPort()));
+            socket.setNetworkInterface(loopback);
+            socket.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+            socket.setReceiveBufferSize(4 * 1024 * 1024);
+            socket.joinGroup(GROUP, loopback);
+            multicast = new ReliableMulticast(socket, this, dropRate);
+            multicast.join(GROUP, ROOM_ID);
+
+            Thread thread = new Thread(() -> {
+                DatagramPacket packet = new DatagramPacket(new byte[ReliableMulticast.MAX_DATAGRAM], ReliableMulticast.MAX_DATAGRAM);
+                try {
+                    while (true) {
+                        packet.setLength(ReliableMulticast.MAX_DATAGRAM);
+                        socket.receive(packet);
+                        multicast.received(packet);
+                    }
+                } catch (java.io.IOException e) {
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void close() {
+            multicast.close();
+            socket.close();
+        }
+
+        // Message numbers must only go up, skipped numbers are counted as lost by the layer
+        public void deliver(InetAddress sender, ByteBuffer text) {
+            String line = StandardCharsets.UTF_8.decode(text).toString();
+            int number = Integer.parseInt(line.substring("message ".length()));
+            if (number <= last) {
+                outOfOrder++;
+            }
+            last = number;
+            delivered++;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package chatroom;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+// A connection without a socket: commands go straight into the protocol decoder and
+// queued frames are decoded back into text lines as soon as they are queued
+class TestClient extends MultiCastServer.ClientHandler {
+    final String name;
+    private final List<ByteBuffer> batch = new ArrayList<>();
+    private final List<String> lines = new ArrayList<>();
+
+    TestClient(MultiCastServer.Node node, String name) {
+        this.name = name;
+        node.register(this);
+    }
+
+    void send(String command) throws WireProtocol.ProtocolException {
+        received(ByteBuffer.wrap((command + "\n").getBytes(StandardCharsets.UTF_8)));
+    }
+
+    void sendFrame(ByteBuffer frame) throws WireProtocol.ProtocolException {
+        received(frame.duplicate());
+    }
+
+    synchronized String find(String prefix) {
+        for (String line : lines) {
+            if (line.startsWith(prefix)) {
+                return line;
+            }
+        }
+        return null;
+    }
+
+    synchronized int count(String prefix) {
+        int count = 0;
+        for (String line : lines) {
+            if (line.startsWith(prefix)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    void scheduleDrain() {
+        do {
+            synchronized (this) {
+                while (outbound.drainTo(batch, 64) > 0) {
+                    for (ByteBuffer frame : batch) {
+                        String text = StandardCharsets.UTF_8.decode(frame.duplicate()).toString();
+                        lines.addAll(Arrays.asList(text.split("\n")));
+                    }
+                    batch.clear();
+                }
+            }
+        } while (!outbound.release());
+    }
+
+    void close() {
+    }
+
+    // Polls until the condition holds, false if it still does not after 5 seconds
+    static boolean await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                return false;
+            }
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+        return true;
+    }
+}
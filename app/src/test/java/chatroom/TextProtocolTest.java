@@ -0,0 +1,88 @@
+package chatroom;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+
+import static chatroom.TestClient.await;
+import static org.junit.jupiter.api.Assertions.*;
+
+// Text protocol lines as a client sends them, and the server's lines as
+// ChatConnection parses them back, with spaces and control characters in names
+class TextProtocolTest {
+    private MultiCastServer.Node node;
+    private TestClient client;
+
+    @BeforeEach
+    void newNode() throws Exception {
+        node = new MultiCastServer.Node(new RoomRegistry(
+                new MulticastGroupPool(InetAddress.getByName("239.255.60.0"), 16, 5000)));
+        client = new TestClient(node, "client");
+    }
+
+    @Test
+    void roomNameWithSpacesSurvivesTheRoundTrip() throws Exception {
+        client.send("CreateRoom my big room");
+        assertTrue(await(() -> client.find("RoomCreated ") != null));
+        ChatConnection.Room room = ChatConnection.parseRoom(client.find("RoomCreated "));
+        assertEquals("my big room", room.getName());
+        assertEquals(node.rooms.getByName("my big room").getGroup().getAddress(), room.getGroupAddress());
+    }
+
+    @Test
+    void joinRoomSplitsRoomAndUserNamesWithSpaces() throws Exception {
+        int id = node.rooms.create("my big room", "someone").getId();
+        client.send("JoinRoom " + id + " my big room Nguyen Van");
+        assertEquals("Nguyen Van", client.getUserName());
+        client.send("SendMessage " + id + " hello there");
+        assertTrue(await(() -> client.find("Message " + id + " Nguyen Van: hello there") != null));
+    }
+
+    @Test
+    void creatorWithSpacesIsOneField() throws Exception {
+        int lobby = node.rooms.create("lobby", "someone").getId();
+        client.send("JoinRoom " + lobby + " lobby Nguyen Van");
+        client.send("CreateRoom phòng chat");
+        assertTrue(await(() -> client.find("RoomCreated ") != null));
+        ChatConnection.Room room = ChatConnection.parseRoom(client.find("RoomCreated "));
+        assertEquals("phòng chat", room.getName());
+        assertEquals("Nguyen_Van", room.getCreator());
+        assertNotNull(room.getGroupAddress());
+    }
+
+    @Test
+    void parsesRoomLinesOfEveryShape() throws Exception {
+        ChatConnection.Room grouped = ChatConnection.parseRoom("Room 3 a b c Nguyen_Van 239.255.42.3 5000");
+        assertEquals(3, grouped.getId());
+        assertEquals("a b c", grouped.getName());
+        assertEquals(InetAddress.getByName("239.255.42.3"), grouped.getGroupAddress());
+        assertEquals(5000, grouped.getGroupPort());
+
+        ChatConnection.Room ungrouped = ChatConnection.parseRoom("Room 4 a b creator - 0");
+        assertEquals("a b", ungrouped.getName());
+        assertNull(ungrouped.getGroupAddress());
+
+        // Lines of older servers hold just the name, which may look like anything
+        assertEquals("lobby", ChatConnection.parseRoom("Room 5 lobby").getName());
+        assertEquals("a ab:cd 12 x", ChatConnection.parseRoom("Room 6 a ab:cd 12 x").getName());
+    }
+
+    @Test
+    void controlCharactersAreRefused() throws Exception {
+        int id = node.rooms.create("lobby", "someone").getId();
+        client.send("JoinRoom " + id + " lobby alice");
+        client.send("SendMessage " + id + " forged\r@1 RoomCreated 9 x");
+        assertTrue(await(() -> client.find("UnknownCommand") != null));
+        assertNull(client.find("Message " + id));
+    }
+
+    @Test
+    void crlfLineEndingsAreAccepted() throws Exception {
+        int id = node.rooms.create("lobby", "someone").getId();
+        client.send("JoinRoom " + id + " lobby alice\r");
+        client.send("SendMessage " + id + " hi\r");
+        assertTrue(await(() -> client.find("Message " + id + " alice: hi") != null));
+        assertNull(client.find("UnknownCommand"));
+    }
+}
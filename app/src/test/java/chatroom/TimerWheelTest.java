@@ -0,0 +1,53 @@
+package chatroom;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TimerWheelTest {
+    // 1 ms ticks, 16 slots: one turn of the wheel is 16 ms
+    private final TimerWheel wheel = new TimerWheel("test-wheel", TimeUnit.MILLISECONDS.toNanos(1), 16);
+
+    @Test
+    void neverRunsATaskEarly() throws Exception {
+        CountDownLatch ran = new CountDownLatch(1);
+        long[] elapsed = new long[1];
+        long start = System.nanoTime();
+        wheel.schedule(() -> {
+            elapsed[0] = System.nanoTime() - start;
+            ran.countDown();
+        }, TimeUnit.MILLISECONDS.toNanos(50));
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        assertTrue(elapsed[0] >= TimeUnit.MILLISECONDS.toNanos(50), "ran after " + elapsed[0] + " ns");
+    }
+
+    @Test
+    void runsTasksInDeadlineOrderAcrossTurns() throws Exception {
+        List<Integer> order = new CopyOnWriteArrayList<>();
+        CountDownLatch ran = new CountDownLatch(3);
+        // 40 ms is more than two turns, it waits in its slot for the extra rounds
+        for (int millis : new int[] { 40, 5, 20 }) {
+            wheel.schedule(() -> {
+                order.add(millis);
+                ran.countDown();
+            }, TimeUnit.MILLISECONDS.toNanos(millis));
+        }
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of(5, 20, 40), order);
+    }
+
+    @Test
+    void failingTaskDoesNotStopTheOthers() throws Exception {
+        CountDownLatch ran = new CountDownLatch(1);
+        wheel.schedule(() -> {
+            throw new IllegalStateException("expected by the test");
+        }, 0);
+        wheel.schedule(ran::countDown, TimeUnit.MILLISECONDS.toNanos(2));
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,64 @@
+package chatroom;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Time is passed in, so every case runs on exact nanoseconds
+class TokenBucketTest {
+    // 10 tokens a second, one every 100 ms, up to 5 at once
+    private static final TokenBucket.Limit LIMIT = new TokenBucket.Limit("test", 10, 5);
+    // A new bucket is full as of its creation, so the tests' clock starts after it
+    private final TokenBucket bucket = LIMIT.newBucket();
+    private final long start = System.nanoTime();
+
+    @Test
+    void startsFullAndRefusesBeyondTheBurst() {
+        for (int i = 0; i < 5; i++) {
+            assertTrue(bucket.tryAcquire(start), "token " + i);
+        }
+        assertFalse(bucket.tryAcquire(start));
+    }
+
+    @Test
+    void refillsAtTheRate() {
+        assertTrue(bucket.tryAcquire(start, 5));
+        assertFalse(bucket.tryAcquire(start + millis(99)));
+        assertTrue(bucket.tryAcquire(start + millis(100)));
+        assertFalse(bucket.tryAcquire(start + millis(100)));
+        // Never more than the burst, however long it was idle
+        long later = start + TimeUnit.HOURS.toNanos(1);
+        assertTrue(bucket.tryAcquire(later, 5));
+        assertFalse(bucket.tryAcquire(later));
+    }
+
+    @Test
+    void costAboveTheBurstWaitsForAFullBucket() {
+        assertTrue(bucket.tryAcquire(start, 1));
+        assertFalse(bucket.tryAcquire(start, 100));
+        assertTrue(bucket.tryAcquire(start + millis(100), 100));
+        assertFalse(bucket.tryAcquire(start + millis(100)));
+    }
+
+    @Test
+    void refundGivesTokensBackUpToTheBurst() {
+        assertTrue(bucket.tryAcquire(start, 5));
+        bucket.refund(1);
+        assertTrue(bucket.tryAcquire(start));
+        assertFalse(bucket.tryAcquire(start));
+        bucket.refund(50);
+        assertTrue(bucket.tryAcquire(start, 5));
+        assertFalse(bucket.tryAcquire(start));
+    }
+
+    @Test
+    void zeroRateTurnsTheLimitOff() {
+        assertNull(new TokenBucket.Limit("off", 0, 5).newBucket());
+    }
+
+    private static long millis(long millis) {
+        return TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+}
@@ -0,0 +1,97 @@
+package chatroom;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Decoding the text and binary wire protocols, for a batch mixing GetRooms, JoinRoom,
+// LeaveRoom and SendMessage. Run with -prof gc for bytes allocated per batch.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CommandParsingBenchmark {
+    private static final int REQUESTS_PER_BATCH = 4;
+
+    @Param({"text", "binary"})
+    public String protocolName;
+
+    private WireProtocol protocol;
+    private ByteBuffer requests;
+    private final CountingClientHandler handler = new CountingClientHandler();
+
+    @Setup
+    public void setUp() {
+        protocol = WireProtocol.forName(protocolName);
+        if (protocol == WireProtocol.TEXT) {
+            requests = ByteBuffer.wrap(("GetRooms 12\n"
+                    + "JoinRoom 42 lobby alice\n"
+                    + "LeaveRoom lobby alice\n"
+                    + "SendMessage 42 hello everyone in the lobby\n").getBytes(StandardCharsets.UTF_8));
+        } else {
+            requests = ByteBuffer.allocate(256);
+            requests.put(BinaryProtocol.encode(BinaryProtocol.GET_ROOMS, 13));
+            requests.put(BinaryProtocol.encode(BinaryProtocol.JOIN_ROOM, 42, "alice"));
+            requests.put(BinaryProtocol.encode(BinaryProtocol.LEAVE_ROOM, 42, "alice"));
+            requests.put(BinaryProtocol.encode(BinaryProtocol.SEND_MESSAGE, 42, "hello everyone in the lobby"));
+            requests.flip();
+        }
+    }
+
+    @TearDown
+    public void checkDecoded() {
+        if (handler.commands % REQUESTS_PER_BATCH != 0) {
+            throw new IllegalStateException("Decoded " + handler.commands + " commands, not whole batches");
+        }
+    }
+
+    // One batch of four requests per invocation
+    @Benchmark
+    public int decodeBatch() throws WireProtocol.ProtocolException {
+        ByteBuffer in = requests;
+        in.position(0);
+        while (in.hasRemaining() && protocol.decode(in, handler)) {
+        }
+        return handler.sink;
+    }
+
+    // Only counts the decoded commands, so the benchmark measures the codec alone
+    private static class CountingClientHandler extends MultiCastServer.ClientHandler {
+        long commands;
+        int sink;
+
+        void getRooms(long sinceVersion) {
+            commands++;
+            sink += (int) sinceVersion;
+        }
+
+        void joinRoom(int roomId, String roomName, String userName) {
+            commands++;
+            sink += roomId + userName.length();
+        }
+
+        void leaveRoomByName(String roomName, String userName) {
+            commands++;
+            sink += roomName.length();
+        }
+
+        void leaveRoom(int roomId, String userName) {
+            commands++;
+            sink += roomId;
+        }
+
+        void sendMessage(int roomId, String text) {
+            commands++;
+            sink += roomId + text.length();
+        }
+
+        void scheduleDrain() {
+        }
+
+        void close() {
+        }
+    }
+}
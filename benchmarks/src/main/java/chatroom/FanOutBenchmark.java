@@ -0,0 +1,65 @@
+package chatroom;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Room fan-out in-process: one sender broadcasting into a room of N members whose
+// writers consume frames as soon as they are queued. Compares the shared
+// encode-once frame with encoding the line per member. Scores are per chat message;
+// multiply by members for deliveries.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FanOutBenchmark {
+    private static final String TEXT = "a chat line of a typical length, around sixty bytes or so";
+
+    @Param({"100", "1000", "10000"})
+    public int members;
+
+    private MultiCastServer.Room room;
+
+    @Setup
+    public void setUp() {
+        room = new MultiCastServer.Room(0, "bench", new DiscardingClientHandler(), null);
+        for (int i = 1; i < members; i++) {
+            room.addMember(new DiscardingClientHandler());
+        }
+    }
+
+    @Benchmark
+    public void encodeOnce() {
+        room.broadcastMessage("bench", TEXT);
+    }
+
+    @Benchmark
+    public void encodePerMember() {
+        for (MultiCastServer.ClientHandler member : room.members()) {
+            member.send(WireProtocol.TEXT.message(room.getId(), "bench", TEXT));
+        }
+    }
+
+    // Stands in for a connection whose writer keeps up with the sender
+    private static class DiscardingClientHandler extends MultiCastServer.ClientHandler {
+        private final List<ByteBuffer> batch = new ArrayList<>();
+        long bytes;
+
+        void scheduleDrain() {
+            do {
+                while (outbound.drainTo(batch, 64) > 0) {
+                    for (ByteBuffer frame : batch) {
+                        bytes += frame.duplicate().remaining();
+                    }
+                    batch.clear();
+                }
+            } while (!outbound.release());
+        }
+
+        void close() {
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package chatroom;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Room registry lookups the command path does on every JoinRoom, LeaveRoom and
+// SendMessage, GetRooms answered from the shared encoded list or a delta, and
+// CreateRoom. The registry is shared by all benchmark threads: the contended cases
+// create rooms, each followed by its removal so the registry keeps its size, while
+// other threads look rooms up, so they measure the registry lock and the encoded
+// list rebuilt on every removal.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RoomLookupBenchmark {
+    // Rooms created on top of the fixed ones at any time, at most one per thread
+    private static final int SPARE_GROUPS = 64;
+
+    @Param({"100", "10000"})
+    public int rooms;
+
+    private RoomRegistry registry;
+    private String[] names;
+    private final MultiCastServer.ClientHandler creator = new IdleClientHandler();
+
+    // Each thread walks the rooms on its own
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int next;
+
+        int next(int rooms) {
+            int index = next;
+            next = index + 1 == rooms ? 0 : index + 1;
+            return index;
+        }
+    }
+
+    @Setup
+    public void setUp() throws UnknownHostException {
+        // One group per room, so the pool never has to share and warn
+        registry = new RoomRegistry(new MulticastGroupPool(InetAddress.getByName("239.255.0.0"), rooms + SPARE_GROUPS, 5000));
+        names = new String[rooms];
+        for (int i = 0; i < rooms; i++) {
+            names[i] = "room" + i;
+            registry.create(names[i], creator);
+        }
+    }
+
+    @Benchmark
+    public MultiCastServer.Room byId(Cursor cursor) {
+        return registry.getById(cursor.next(rooms));
+    }
+
+    @Benchmark
+    public MultiCastServer.Room byName(Cursor cursor) {
+        return registry.getByName(names[cursor.next(rooms)]);
+    }
+
+    @Benchmark
+    public MultiCastServer.Room createRoom() {
+        return createAndRemove();
+    }
+
+    // Every thread creating rooms at once
+    @Benchmark
+    @Threads(4)
+    public MultiCastServer.Room createRoomContended() {
+        return createAndRemove();
+    }
+
+    // Three threads looking rooms up while a fourth creates them
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(3)
+    public MultiCastServer.Room contendedById(Cursor cursor) {
+        return registry.getById(cursor.next(rooms));
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    public MultiCastServer.Room contendedCreate() {
+        return createAndRemove();
+    }
+
+    private MultiCastServer.Room createAndRemove() {
+        MultiCastServer.Room room = registry.create("extra", creator);
+        registry.remove(room.getId());
+        return room;
+    }
+
+    @Benchmark
+    public ByteBuffer[] fullList() {
+        return registry.roomListFrames(WireProtocol.TEXT, -1);
+    }
+
+    // A client one change behind
+    @Benchmark
+    public ByteBuffer[] delta() {
+        return registry.roomListFrames(WireProtocol.TEXT, registry.version() - 1);
+    }
+
+    // Creator of every room, never sends anything
+    private static class IdleClientHandler extends MultiCastServer.ClientHandler {
+        void scheduleDrain() {
+        }
+
+        void close() {
+        }
+    }
+}